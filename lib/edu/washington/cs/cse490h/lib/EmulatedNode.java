@@ -2,10 +2,12 @@ package edu.washington.cs.cse490h.lib;
 
 import java.net.Socket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.List;
 import java.io.IOException;
 
 /**
@@ -17,8 +19,8 @@ import java.io.IOException;
 public class EmulatedNode implements Runnable{
 	private Router parent;
 	private Socket socket;
-	private OutputStream out;
-	private InputStream in;
+	// reads and writes packets on the socket's channel
+	private PacketCodec codec;
 	private int addr;
 	
 	// TODO: implement and use 
@@ -37,8 +39,8 @@ public class EmulatedNode implements Runnable{
 	 * 
 	 * @param parent
 	 *            A pointer to the router so that it can signal failures
-	 * @param socket
-	 *            The socket to use to talk to the emulated node
+	 * @param channel
+	 *            The channel to use to talk to the emulated node
 	 * @param addr
 	 *            The virtual address of the emulated node
 	 * @param ipAddress
@@ -48,16 +50,15 @@ public class EmulatedNode implements Runnable{
 	 * @throws IOException
 	 *             If creation of the socket fails
 	 */
-	public EmulatedNode(Router parent, Socket socket, int addr, InetAddress ipAddress, int port) throws IOException {
+	public EmulatedNode(Router parent, SocketChannel channel, int addr, InetAddress ipAddress, int port) throws IOException {
 		this.parent = parent;
-		this.socket = socket;
+		this.socket = channel.socket();
 		this.addr = addr;
 		// this.vtime = new VectorTime(Manager.MAX_ADDRESS);
 		this.ipAddress = ipAddress;
 		this.port = port;
 
-		out = socket.getOutputStream();
-		in = socket.getInputStream();
+		codec = new PacketCodec(channel, channel);
 
 		cleanQuit = false;
 		finished = false;
@@ -67,9 +68,11 @@ public class EmulatedNode implements Runnable{
 	}
 
 	public void run() {
+		// addresses we have sent to since the last flush
+		List<Integer> touched = new ArrayList<Integer>();
 		try {
 			while(isUp()) {
-				Packet packet = Packet.unpack(in);
+				Packet packet = codec.read();
 
 				if(packet == null) {
 					// The other side closed the connection
@@ -82,19 +85,51 @@ public class EmulatedNode implements Runnable{
 					// if a send occurs here it's OK cause finished = true
 					// we don't call nodeQuit inside close because it could cause deadlock
 					parent.nodeQuit(addr, queue);
+				} else if((packet.getFlags() & (Packet.JOIN_GROUP | Packet.LEAVE_GROUP)) != 0) {
+					parent.groupChange(packet.getDest(), addr, (packet.getFlags() & Packet.JOIN_GROUP) != 0);
+				} else if(packet.isMulticast()) {
+					// encoded once, and the same bytes go to every member
+					ByteBuffer header = PacketCodec.encodeHeader(packet);
+					System.out.println("Multicasting: " + packet);
+
+					synchronized(parent.emulatedNodes) {
+						for(Integer dest: parent.getGroupMembers(packet.getDest())) {
+							// skip members the router holds no container for
+							if(dest != addr && parent.emulatedNodes.containsKey(dest)) {
+								parent.emulatedNodes.get(dest).send(packet, header);
+								if(!touched.contains(dest)) {
+									touched.add(dest);
+								}
+							}
+						}
+					}
 				} else if(packet.getDest() == Manager.BROADCAST_ADDRESS) {
 					Collection<Integer> c = parent.emulatedNodes.keySet();
+					ByteBuffer header = PacketCodec.encodeHeader(packet);
 					System.out.println("Broadcasting: " + packet);
 
 					synchronized(parent.emulatedNodes) {
 						for(Integer dest: c) {
 							if(dest != addr) {
-								parent.emulatedNodes.get(dest).send(packet);
+								parent.emulatedNodes.get(dest).send(packet, header);
+								if(!touched.contains(dest)) {
+									touched.add(dest);
+								}
 							}
 						}
 					}
 				} else {
 					parent.emulatedNodes.get(packet.getDest()).send(packet);
+					if(!touched.contains(packet.getDest())) {
+						touched.add(packet.getDest());
+					}
+				}
+
+				// Packets the node sent together are routed together. Once
+				// we have handled all of them, write out what we sent.
+				if(!codec.hasBufferedPacket()) {
+					parent.flushNodes(touched);
+					touched.clear();
 				}
 			}
 		} catch (IOException e) {
@@ -111,13 +146,20 @@ public class EmulatedNode implements Runnable{
 				parent.nodeQuit(addr, null);
 			}
 		}
+
+		// nothing is read or sent on the socket anymore
+		synchronized (this) {
+			finished = true;
+			codec.release();
+		}
 	}
 
 	/**
-	 * Called by other EmulatedNodes to send a packet to this node.
+	 * Called by other EmulatedNodes to send a packet to this node. The packet
+	 * is only queued; it goes out with the others sent since the last flush.
 	 * 
-	 * Locking methodology is that this and close() should not call other
-	 * synchronized blocks (except each other)
+	 * Locking methodology is that this, flush() and close() should not call
+	 * other synchronized blocks (except each other)
 	 * 
 	 * @param pkt
 	 *            The packet to send
@@ -126,13 +168,27 @@ public class EmulatedNode implements Runnable{
 	 *         queued
 	 */
 	protected synchronized boolean send(Packet pkt){
+		return send(pkt, null);
+	}
+
+	/**
+	 * Send a packet whose header has already been encoded, so that a packet
+	 * to many nodes is encoded once.
+	 * 
+	 * @param pkt
+	 *            The packet to send
+	 * @param header
+	 *            The packet's header, as made by PacketCodec.encodeHeader, or
+	 *            null
+	 * @return true if the send was successful, false otherwise
+	 */
+	protected synchronized boolean send(Packet pkt, ByteBuffer header){
 		if(finished) {
 			return false;
 		}
 
 		try {
-			out.write(pkt.pack());
-			out.flush();
+			codec.queue(pkt, header);
 		} catch (IOException e) {
 			finished = true;
 			e.printStackTrace();
@@ -140,6 +196,23 @@ public class EmulatedNode implements Runnable{
 		return true;
 	}
 
+	/**
+	 * Called by other EmulatedNodes to write the packets sent to this node
+	 * since the last flush, together.
+	 */
+	protected synchronized void flush() {
+		if(finished) {
+			return;
+		}
+
+		try {
+			codec.flush();
+		} catch (IOException e) {
+			finished = true;
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Close the the connection to the node server cleanly.
 	 * 
@@ -150,6 +223,7 @@ public class EmulatedNode implements Runnable{
 		Packet fin = Packet.getFinPacket(addr);
 		// send our FIN packet to signal that no new packets will arrive
 		send(fin);
+		flush();
 		finished = true;
 
 		try {
@@ -160,7 +234,7 @@ public class EmulatedNode implements Runnable{
 
 			while(true) {
 				// grab all the undelivered messages
-				Packet packet = Packet.unpack(in);
+				Packet packet = codec.read();
 
 				if(packet == null) {
 					throw new IOException("Corrupted packet.  Cannot recover from misalignment.");
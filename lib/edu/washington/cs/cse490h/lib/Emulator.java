@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 // jython stuff
 import org.python.core.Py;
@@ -35,6 +36,9 @@ public class Emulator extends Manager {
 	private boolean failed;
 	private boolean IOFinished;
 
+	// deliver packets as soon as they arrive instead of once per time step
+	private boolean eventDriven;
+
 	/**
 	 * Base constructor for the Emulator. Does most of the work, but the command
 	 * input method and failure level should be set before calling this
@@ -71,19 +75,19 @@ public class Emulator extends Manager {
 		setParser(new EmulationCommandsParser());
 
 		System.out.print("Starting emulation ");
-		if (Replay.isReplaying()) {
+		if (replay.isReplaying()) {
 			System.out.print("in replay mode ");
 		}
 		System.out.println("with seed: " + this.seed);
-		Utility.randNumGen = new Random(this.seed);
+		context.setRNG(new Random(this.seed));
 
 		this.routerName = routerName;
 		this.routerPort = routerPort;
 
-		if (Replay.isReplaying()) {
+		if (replay.isReplaying()) {
 			// grab the address from the replay input file
 			try {
-				Packet addrPkt = Replay.getPacket();
+				Packet addrPkt = replay.getPacket();
 
 				if (Replay.isAddrPacket(addrPkt)) {
 					address = addrPkt.getDest();
@@ -92,6 +96,8 @@ public class Emulator extends Manager {
 				}
 			} catch (CorruptPacketException e) {
 				throw new Replay.ReplayException("Address packet expected, but packet was corrupted");
+			} catch (IOException e) {
+				throw new Replay.ReplayException("Error while reading replay file");
 			}
 
 			// We never want the node to kill itself cause the server did
@@ -101,10 +107,10 @@ public class Emulator extends Manager {
 			IOFinished = true;
 		}
 
-		if (Replay.replayOut != null) {
+		if (replay.replayOut != null) {
 			try {
 				Packet addrPkt = Replay.getAddrPacket(address);
-				Replay.replayOut.write(addrPkt.pack());
+				replay.record(addrPkt);
 			} catch (IOException e) {
 				throw new Replay.ReplayException(e.getMessage());
 			}
@@ -202,6 +208,37 @@ public class Emulator extends Manager {
 		sortedEvents = commandFileParser.parseFile(commandFile);
 	}
 
+	/**
+	 * Deliver each packet as soon as it arrives, rather than holding it until
+	 * the next time step. Between two steps the emulator waits on the
+	 * NodeServer for packets instead of sleeping, so a message reaches the
+	 * node's handler right after it comes in. Commands, timeouts, crashes and
+	 * delayed packets still happen on step boundaries, which are timeStep ms
+	 * apart as before.
+	 * 
+	 * This only works with a command file and random drops and delays, and
+	 * not with replay, since packets are no longer grouped by time step.
+	 * 
+	 * @param eventDriven
+	 *            Whether to deliver packets as they arrive
+	 * @throws IllegalArgumentException
+	 *             If the emulator is not set up for it
+	 */
+	protected void setEventDriven(boolean eventDriven) throws IllegalArgumentException {
+		if (eventDriven) {
+			if (cmdInputType != InputType.FILE) {
+				throw new IllegalArgumentException("Event-driven emulation needs a command file");
+			}
+			if (userControl.compareTo(FailureLvl.DROP) >= 0) {
+				throw new IllegalArgumentException("Event-driven emulation cannot let the user drop or delay packets");
+			}
+			if (replay.isReplaying() || replay.replayOut != null) {
+				throw new IllegalArgumentException("Event-driven emulation cannot be replayed");
+			}
+		}
+		this.eventDriven = eventDriven;
+	}
+
 	/**
 	 * Perform a single emulator time step with a set of events as argument
 	 *
@@ -217,6 +254,7 @@ public class Emulator extends Manager {
 
 		executeEvents(currentRoundEvents);
 
+		flushToRouter();
 	}
 
 	/**
@@ -224,12 +262,15 @@ public class Emulator extends Manager {
 	 */
 	@Override
 	protected void start() {
+		context.bind();
+
 		// start the synoptic partial-ordered logger
-		synPartialOrderLogger.start(MessageLayer.synopticPartialOrderLogFilename);
+		synPartialOrderLogger.start(context.getSynopticPartialOrderLogFilename());
 
 		startNode();
 
 		if (cmdInputType == InputType.FILE) {
+			long stepDeadline = System.currentTimeMillis();
 			while (node != null || failed) {
 				if (IOFinished && node != null) {
 					System.err.println("Network I/O thread failed, killing the node...");
@@ -266,11 +307,16 @@ public class Emulator extends Manager {
 					logEventWithNodeField(node, "TIMESTEP time:" + now());
 				}
 
-				try {
-					// We sleep here to give a chance for messages to travel
-					// over the network
-					Thread.sleep(timeStep);
-				} catch (InterruptedException e) {
+				stepDeadline += timeStep;
+				if (eventDriven) {
+					deliverUntil(stepDeadline);
+				} else {
+					try {
+						// We sleep here to give a chance for messages to travel
+						// over the network
+						Thread.sleep(timeStep);
+					} catch (InterruptedException e) {
+					}
 				}
 			}
 		} else if (cmdInputType == InputType.USER) {
@@ -347,7 +393,7 @@ public class Emulator extends Manager {
 							// block
 							// Empty/whitespace will be treated as a skipped
 							// line, which will return null and cause a continue
-							String input = Replay.getLine();
+							String input = replay.getLine();
 
 							// Process user input if there is any
 							if (input != null) {
@@ -425,7 +471,7 @@ public class Emulator extends Manager {
 
                     // Process user input if there is any
                     // TODO integrate Console and Replay somehow
-                    // String input = Replay.getLine();
+                    // String input = replay.getLine();
                     String input = console.readLine();
 
                     if (input != null) {
@@ -459,6 +505,10 @@ public class Emulator extends Manager {
 		} else {
 			System.out.println("failed");
 		}
+		if (server != null && server.getPacketsDropped() > 0) {
+			System.out.println("Inbound queue dropped " + server.getPacketsDropped()
+					+ " packets, held at most " + server.getMaxQueueDepth());
+		}
 
 		synPartialOrderLogger.stop();
 		System.exit(0);
@@ -479,7 +529,7 @@ public class Emulator extends Manager {
 			killServer();
 		}
 
-		if (!Replay.isReplaying()) {
+		if (!replay.isReplaying()) {
 			// start up the server
 			try {
 				server = new NodeServer(routerName, routerPort, address, this);
@@ -511,6 +561,7 @@ public class Emulator extends Manager {
 		} catch (NodeCrashException e) {
 			failNode();
 		}
+		flushToRouter();
 	}
 
 	/**
@@ -573,7 +624,7 @@ public class Emulator extends Manager {
 	@Override
 	protected void checkWriteCrash(Node n, String description) {
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-			if (Utility.getRNG().nextDouble() < failureRate) {
+			if (context.getRNG().nextDouble() < failureRate) {
 				System.out.println("Randomly failing before write");
 				NodeCrashException e = failNode();
 				// This function is called by Node, so we need to rethrow the
@@ -583,7 +634,7 @@ public class Emulator extends Manager {
 		} else {
 			try {
 				System.out.println("Crash before " + description + "? (y/n)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 
 				if (input.length() != 0 && input.charAt(0) == 'y') {
 					NodeCrashException e = failNode();
@@ -626,37 +677,33 @@ public class Emulator extends Manager {
 	 */
 	private void checkInTransit(ArrayList<Event> currentRoundEvents) {
 		// Load in all the newly received messages
-		Packet pkt;
 		try {
-			if (Replay.isReplaying()) {
-				pkt = Replay.getPacket();
-				if (Replay.isNullPacket(pkt)) {
-					pkt = null;
+			if (replay.isReplaying()) {
+				Packet pkt = replay.getPacket();
+				while (pkt != null && !Replay.isNullPacket(pkt)) {
+					if (replay.replayOut != null) {
+						replay.record(pkt);
+					}
+					inTransitMsgs.add(pkt);
+					pkt = replay.getPacket();
 				}
 			} else {
-				pkt = server.getPacket();
-			}
-			while (pkt != null) {
-				if (Replay.replayOut != null) {
-					Replay.replayOut.write(pkt.pack());
-				}
-				inTransitMsgs.add(pkt);
-				if (Replay.isReplaying()) {
-					pkt = Replay.getPacket();
-					if (Replay.isNullPacket(pkt)) {
-						pkt = null;
+				// take everything that arrived since the last step at once
+				int first = inTransitMsgs.size();
+				server.drainPackets(inTransitMsgs);
+				if (replay.replayOut != null) {
+					for (int i = first; i < inTransitMsgs.size(); i++) {
+						replay.record(inTransitMsgs.get(i));
 					}
-				} else {
-					pkt = server.getPacket();
 				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		if (Replay.replayOut != null) {
+		if (replay.replayOut != null) {
 			try {
-				Replay.replayOut.write(Replay.getNullPacket().pack());
+				replay.record(Replay.getNullPacket());
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -675,7 +722,7 @@ public class Emulator extends Manager {
 			Iterator<Packet> iter = currentPackets.iterator();
 		while (iter.hasNext()) {
 			Packet p = iter.next();
-			double rand = Utility.getRNG().nextDouble();
+			double rand = context.getRNG().nextDouble();
 			if (rand < dropRate) {
 				System.out.println("Randomly dropping: " + p.toString());
 				logEvent(node, "DROP " + p.toSynopticString(node));
@@ -691,7 +738,7 @@ public class Emulator extends Manager {
 			try {
 				System.out
 				.println("Which should be dropped? (space delimited list or just press enter to drop none)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				// hash set so we don't have to deal with duplicates
 				HashSet<Packet> toBeRemoved = new HashSet<Packet>();
 
@@ -715,7 +762,7 @@ public class Emulator extends Manager {
 					// >= DELAY
 					System.out
 					.println("Which should be delayed? (space delimited list or just press enter to delay none)");
-					input = Replay.getLine().trim();
+					input = replay.getLine().trim();
 
 					if (!input.equals("")) {
 						String[] delayList = input.split("\\s+");
@@ -743,7 +790,7 @@ public class Emulator extends Manager {
 			Iterator<Packet> iter = currentPackets.iterator();
 			while (iter.hasNext()) {
 				Packet p = iter.next();
-				double rand = Utility.getRNG().nextDouble();
+				double rand = context.getRNG().nextDouble();
 				// adjust the probability since these are not independent events
 				// Ex: 50% drop rate and 50% delay rate should mean that nothing
 				// gets through
@@ -762,6 +809,53 @@ public class Emulator extends Manager {
 		}
 	}
 
+	/**
+	 * Deliver packets as they come in from the NodeServer, until the given
+	 * time. Used between time steps in event-driven mode.
+	 * 
+	 * @param deadline
+	 *            When to stop, in milliseconds since the epoch
+	 */
+	private void deliverUntil(long deadline) {
+		long wait;
+		while ((wait = deadline - System.currentTimeMillis()) > 0) {
+			if (node == null || server == null || IOFinished) {
+				// nothing can arrive; the next step deals with the rest
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+				}
+				return;
+			}
+
+			Packet pkt;
+			try {
+				pkt = server.getPacket(wait, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (pkt == null) {
+				continue;
+			}
+
+			// the same random drops and delays as checkInTransit
+			if (context.getRNG().nextDouble() < dropRate) {
+				System.out.println("Randomly dropping: " + pkt.toString());
+				logEvent(node, "DROP " + pkt.toSynopticString(node));
+				continue;
+			}
+			double adjustedDelay = delayRate / (1 - dropRate);
+			if (context.getRNG().nextDouble() < adjustedDelay) {
+				System.out.println("Randomly Delaying: " + pkt.toString());
+				logEvent(node, "DELAY " + pkt.toSynopticString(node));
+				inTransitMsgs.add(pkt);
+				continue;
+			}
+			handleEvent(Event.getDelivery(pkt));
+			flushToRouter();
+		}
+	}
+
 	/**
 	 * Checks whether to crash a live node
 	 *
@@ -772,14 +866,14 @@ public class Emulator extends Manager {
 		// See if we should crash.
 		// Failures and restarts specified in the file are deprecated
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-			double rand = Utility.getRNG().nextDouble();
+			double rand = context.getRNG().nextDouble();
 			if (rand < failureRate) {
 				currentRoundEvents.add(Event.getFailure(address));
 			}
 		} else {
 			try {
 				System.out.println("Crash? (y/n)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				if (input.charAt(0) == 'y') {
 					currentRoundEvents.add(Event.getFailure(address));
 				}
@@ -797,7 +891,7 @@ public class Emulator extends Manager {
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) { // userControl <
 			// CRASH
 			// make a copy so we don't have concurrent modification exceptions
-			double rand = Utility.getRNG().nextDouble();
+			double rand = context.getRNG().nextDouble();
 			if (rand < recoveryRate) {
 				startNode();
 			}
@@ -806,7 +900,7 @@ public class Emulator extends Manager {
 				// The user could also just use the start command, but not if
 				// the input method is file
 				System.out.println("Restart? (y/n)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				if (input.charAt(0) == 'y') {
 					startNode();
 				}
@@ -824,19 +918,11 @@ public class Emulator extends Manager {
 	 *            The list of the current round's events that we should add to
 	 */
 	private void checkTimeouts(ArrayList<Event> currentRoundEvents) {
-		ArrayList<Timeout> currentTOs = waitingTOs;
-		waitingTOs = new ArrayList<Timeout>();
-
-		Iterator<Timeout> iter = currentTOs.iterator();
-		while (iter.hasNext()) {
-			Timeout to = iter.next();
-			if (now() >= to.fireTime) {
-				iter.remove();
-				currentRoundEvents.add(Event.getTimeout(to));
-			}
+		ArrayList<Timeout> expired = new ArrayList<Timeout>();
+		waitingTOs.expire(now(), expired);
+		for (Timeout to : expired) {
+			currentRoundEvents.add(Event.getTimeout(to));
 		}
-
-		waitingTOs.addAll(currentTOs);
 	}
 
 	/**
@@ -858,7 +944,7 @@ public class Emulator extends Manager {
 					}
 					System.out
 					.println("In what order should the events happen? (enter for in-order)");
-					String input = Replay.getLine().trim();
+					String input = replay.getLine().trim();
 
 					if (input.equals("")) {
 						// enter for in-order
@@ -893,7 +979,7 @@ public class Emulator extends Manager {
 				}
 			} while (doAgain);
 		} else {
-			Collections.shuffle(currentRoundEvents, Utility.getRNG());
+			Collections.shuffle(currentRoundEvents, context.getRNG());
             if (cmdInputType != InputType.CONSOLE) {
                 System.out.println("Executing with order: ");
             }
@@ -933,11 +1019,17 @@ public class Emulator extends Manager {
 			deliverPkt(ev.p);
 			break;
 		case TIMEOUT:
+			if (ev.to.isCancelled()) {
+				break;
+			}
+
 			logEventWithNodeField(ev.to.node, "TIMEOUT fire-time:"
-					+ ev.to.fireTime + " " + ev.to.cb.toString());
+					+ ev.to.fireTime + " " + ev.to.toString());
 
 			try {
-				ev.to.cb.invoke();
+				ev.to.invoke();
+			} catch (NodeCrashException e) {
+				failNode();
 			} catch (InvocationTargetException e) {
 				Throwable t = e.getCause();
 				if (t == null) {
@@ -985,25 +1077,81 @@ public class Emulator extends Manager {
 		Packet newPacket = new Packet(to, fromNode.addr, protocol, payload);
 		logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
 		// XXX: broadcasts are one msg here, whereas simulator they are multiple
-		sendToRouter(to, newPacket.pack());
+		sendToRouter(to, newPacket);
 		return;
 	}
 
+	/**
+	 * Create a packet to a multicast group and send it to the router, which
+	 * hands it to the members.
+	 *
+	 * @param fromNode
+	 *            The node that is sending the packet
+	 * @param group
+	 *            The multicast group
+	 * @param protocol
+	 *            The protocol of the message
+	 * @param payload
+	 *            The payload to be sent, serialized to a byte array
+	 * @throws IllegalArgumentException
+	 *             If the send is invalid
+	 */
+	@Override
+	protected void multicastPkt(Node fromNode, int group, int protocol, byte[] payload)
+	throws IllegalArgumentException {
+		super.multicastPkt(fromNode, group, protocol, payload); // check arguments
+
+		if (node == null) {
+			return;
+		}
+
+		Packet newPacket = Packet.getMulticastPacket(group, fromNode.addr, protocol, payload);
+		logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
+		sendToRouter(group, newPacket);
+	}
+
+	@Override
+	protected void joinGroup(Node node, int group) throws IllegalArgumentException {
+		super.joinGroup(node, group);
+		if (server != null) {
+			sendToRouter(group, Packet.getGroupPacket(group, node.addr, true));
+		}
+	}
+
+	@Override
+	protected void leaveGroup(Node node, int group) throws IllegalArgumentException {
+		super.leaveGroup(node, group);
+		if (server != null) {
+			sendToRouter(group, Packet.getGroupPacket(group, node.addr, false));
+		}
+	}
+
 	/**
 	 * Send a packet off to the router.
 	 *
 	 * @param destAddr
 	 *            The virtual address of the destination
 	 * @param pkt
-	 *            The serialized version of the Packet to be sent
+	 *            The Packet to be sent
 	 */
-	private void sendToRouter(int destAddr, byte[] pkt) {
-		if (!Replay.isReplaying()) {
+	private void sendToRouter(int destAddr, Packet pkt) {
+		if (!replay.isReplaying()) {
 			server.send(pkt);
 		}
 		// else ignore it
 	}
 
+	/**
+	 * Write the packets sent since the last flush to the router. Everything a
+	 * node sends in one time step, or while handling one event in
+	 * event-driven mode, goes out in one write.
+	 */
+	private void flushToRouter() {
+		if (server != null && !replay.isReplaying()) {
+			server.flush();
+		}
+	}
+
 	/**
 	 * Actually deliver an in transit packet.
 	 *
@@ -1017,8 +1165,10 @@ public class Emulator extends Manager {
 
 		logEvent(node, "RECVD " + pkt.toSynopticString(node));
 
+		// the router only hands us multicasts to groups we are in
 		if (pkt.getDest() == address
-				|| pkt.getDest() == Manager.BROADCAST_ADDRESS) {
+				|| pkt.getDest() == Manager.BROADCAST_ADDRESS
+				|| pkt.isMulticast()) {
 			try {
 				node.onReceive(pkt.getSrc(), pkt.getProtocol(),
 						pkt.getPayload());
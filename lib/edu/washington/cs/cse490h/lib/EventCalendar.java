@@ -0,0 +1,193 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import edu.washington.cs.cse490h.lib.Manager.Timeout;
+
+/**
+ * The future events of a discrete-event simulation, in one priority queue
+ * ordered by time. Events at the same time are ordered by a tiebreak drawn
+ * from the simulation's RNG when they are scheduled, which shuffles them as
+ * the step-by-step simulator does, and then by the order they were
+ * scheduled, so the order only depends on the seed.
+ *
+ * Work events (deliveries, timeouts and commands) keep the simulation going.
+ * Background events (random crashes and restarts) only happen while there is
+ * work left, as in the step-by-step simulator, where they do not keep it
+ * running either.
+ */
+class EventCalendar {
+    /**
+     * An event with its place in the calendar.
+     */
+    static class Entry implements Comparable<Entry> {
+        final long time;
+        final long tiebreak;
+        final long seq;
+        final Event ev;
+        // for background events, what has to be unchanged for the event to
+        // still apply
+        final Object guard;
+        final boolean background;
+
+        Entry(long time, long tiebreak, long seq, Event ev, Object guard, boolean background) {
+            this.time = time;
+            this.tiebreak = tiebreak;
+            this.seq = seq;
+            this.ev = ev;
+            this.guard = guard;
+            this.background = background;
+        }
+
+        public int compareTo(Entry other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            if (tiebreak != other.tiebreak) {
+                return tiebreak < other.tiebreak ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Entry> queue;
+    private final Random rng;
+    private long nextSeq;
+
+    // work events in the queue, not counting cancelled timeouts
+    private int work;
+    // timeouts in the queue that have not been cancelled
+    private final HashSet<Timeout> pendingTimeouts;
+
+    /**
+     * @param rng
+     *            The simulation's RNG, to draw tiebreaks from
+     */
+    EventCalendar(Random rng) {
+        queue = new PriorityQueue<Entry>();
+        this.rng = rng;
+        nextSeq = 0;
+        work = 0;
+        pendingTimeouts = new HashSet<Timeout>();
+    }
+
+    /**
+     * Schedule a work event.
+     *
+     * @param time
+     *            The time step it happens in
+     * @param ev
+     *            The event
+     */
+    void schedule(long time, Event ev) {
+        if (ev.t == Event.EventType.TIMEOUT) {
+            pendingTimeouts.add(ev.to);
+        }
+        work++;
+        queue.add(new Entry(time, rng.nextLong(), nextSeq++, ev, null, false));
+    }
+
+    /**
+     * Schedule a background event.
+     *
+     * @param time
+     *            The time step it happens in
+     * @param ev
+     *            The event
+     * @param guard
+     *            What has to be unchanged for the event to still apply
+     */
+    void scheduleBackground(long time, Event ev, Object guard) {
+        queue.add(new Entry(time, rng.nextLong(), nextSeq++, ev, guard, true));
+    }
+
+    /**
+     * Forget a timeout that was cancelled. It stays in the queue, but is
+     * skipped when its time comes.
+     *
+     * @param to
+     *            The timeout
+     */
+    void cancel(Timeout to) {
+        if (pendingTimeouts.remove(to)) {
+            work--;
+        }
+    }
+
+    /**
+     * Forget all the timeouts of a node, as cancel does.
+     *
+     * @param node
+     *            The node
+     */
+    void cancelAll(Node node) {
+        Timeout[] timeouts = pendingTimeouts.toArray(new Timeout[0]);
+        for (Timeout to : timeouts) {
+            if (to.node == node) {
+                cancel(to);
+            }
+        }
+    }
+
+    /**
+     * @return true if there are work events left
+     */
+    boolean hasWork() {
+        return work > 0;
+    }
+
+    /**
+     * @return The time of the next event, or -1 if there is none
+     */
+    long nextTime() {
+        dropCancelled();
+        Entry head = queue.peek();
+        return head == null ? -1 : head.time;
+    }
+
+    /**
+     * Take out every event that happens at the given time, in the order they
+     * should happen.
+     *
+     * @param time
+     *            The time, which must be the time of the next event
+     * @param entries
+     *            The list to append the events to
+     */
+    void takeAll(long time, List<Entry> entries) {
+        while (true) {
+            dropCancelled();
+            Entry head = queue.peek();
+            if (head == null || head.time != time) {
+                return;
+            }
+            queue.poll();
+            if (!head.background) {
+                if (head.ev.t == Event.EventType.TIMEOUT) {
+                    pendingTimeouts.remove(head.ev.to);
+                }
+                work--;
+            }
+            entries.add(head);
+        }
+    }
+
+    /**
+     * @return The number of events in the queue, including cancelled ones
+     */
+    int size() {
+        return queue.size();
+    }
+
+    private void dropCancelled() {
+        Entry head;
+        while ((head = queue.peek()) != null && !head.background
+                && head.ev.t == Event.EventType.TIMEOUT
+                && !pendingTimeouts.contains(head.ev.to)) {
+            queue.poll();
+        }
+    }
+}
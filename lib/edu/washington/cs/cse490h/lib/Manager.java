@@ -1,14 +1,16 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract class defining generic routines for running network code under the
@@ -18,10 +20,10 @@ public abstract class Manager {
     protected static final int BROADCAST_ADDRESS = 255;
     protected static final int MAX_ADDRESS = 255;
 
-    protected final double failureRate;
-    protected final double recoveryRate;
-    protected final double dropRate;
-    protected final double delayRate;
+    protected double failureRate;
+    protected double recoveryRate;
+    protected double dropRate;
+    protected double delayRate;
 
     protected long seed;
     protected final Class<? extends Node> nodeImpl;
@@ -31,13 +33,21 @@ public abstract class Manager {
     // Maps: node addr -> node's current vector time
     protected HashMap<Integer, VectorTime> vtimes;
 
-    private int pktsSent;
+    // counted from worker threads in a parallel simulation step
+    private final AtomicInteger pktsSent;
     protected ArrayList<Event> sortedEvents;
-    protected ArrayList<Timeout> waitingTOs;
+    protected TimingWheel waitingTOs;
     protected ArrayList<Packet> inTransitMsgs;
     protected CommandsParser parser; // parser for commands file
 
-    protected SynopticLogger synPartialOrderLogger = new SynopticLogger();
+    // Maps: multicast group -> addresses of its members. A node stays a member
+    // while it is crashed, until it leaves the group.
+    protected HashMap<Integer, Set<Integer>> groups;
+
+    // the RNG, clock, storage, replay streams and loggers of this manager
+    protected final SimulationContext context;
+    protected final Replay replay;
+    protected final SynopticLogger synPartialOrderLogger;
 
     protected FailureLvl userControl;
 
@@ -52,6 +62,17 @@ public abstract class Manager {
 
     protected InputType cmdInputType;
 
+    // whether stop() ends the process, or only the manager
+    private boolean exitOnStop = true;
+
+    /**
+     * Thrown by stop() instead of exiting the process when the manager is one
+     * of several running in the same JVM.
+     */
+    static class StopException extends RuntimeException {
+        private static final long serialVersionUID = 3071659413525376341L;
+    }
+
     protected enum InputType {
         USER, CONSOLE, FILE
     }
@@ -59,12 +80,23 @@ public abstract class Manager {
     protected Map<String, String> consoleOperationsDescription;
 
     /**
-     * Class representing a timeout
+     * Class representing a timeout. A timeout either invokes a Callback or runs
+     * a task, and is linked into the timing wheel until it fires or is
+     * cancelled.
      */
-    protected class Timeout {
+    protected class Timeout implements TimeoutHandle {
         protected Node node;
         protected long fireTime;
         protected Callback cb;
+        protected Runnable task;
+
+        // links within the timing wheel; bucket is -1 when not in the wheel
+        Timeout prev;
+        Timeout next;
+        int bucket = -1;
+
+        private boolean cancelled = false;
+        private boolean fired = false;
 
         protected Timeout(Node node, long fireTime, Callback cb) {
             this.node = node;
@@ -72,17 +104,77 @@ public abstract class Manager {
             this.cb = cb;
         }
 
+        protected Timeout(Node node, long fireTime, Runnable task) {
+            this.node = node;
+            this.fireTime = fireTime;
+            this.task = task;
+        }
+
+        /**
+         * Fire the timeout. Exceptions thrown by a task are wrapped the same
+         * way reflection wraps those thrown by a callback, so that both kinds
+         * of timeout are handled alike.
+         *
+         * @throws InvocationTargetException
+         *             If the callback or task throws an exception
+         * @throws IllegalAccessException
+         *             If the callback's method is inaccessible
+         */
+        protected void invoke() throws InvocationTargetException,
+                IllegalAccessException {
+            fired = true;
+            if (cb != null) {
+                cb.invoke();
+                return;
+            }
+            try {
+                task.run();
+            } catch (Node.NodeCrashException e) {
+                throw e;
+            } catch (StopException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw new InvocationTargetException(e);
+            } catch (Error e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        public boolean cancel() {
+            if (!isPending()) {
+                return false;
+            }
+            cancelled = true;
+            removeTimeout(this);
+            return true;
+        }
+
+        public boolean isPending() {
+            return !cancelled && !fired;
+        }
+
+        protected boolean isCancelled() {
+            return cancelled;
+        }
+
+        public String toSynopticString() {
+            if (cb != null) {
+                return cb.toSynopticString();
+            }
+            return task.getClass().getName();
+        }
+
         @Override
         public String toString() {
-            return node.addr + ": " + cb + " at " + fireTime;
+            return node.addr + ": " + (cb != null ? cb : task) + " at "
+                    + fireTime;
         }
     }
 
-    private long time;
-
     /**
      * Initialize Manager. Grabs all the relevant information from the students
-     * Node class, generates the seed, and initializes replay.
+     * Node class, generates the seed, and initializes replay. The manager uses
+     * the SimulationContext of the thread that constructs it.
      * 
      * @param nodeImpl
      *            The Class object for the student's node implementation
@@ -101,9 +193,14 @@ public abstract class Manager {
     protected Manager(Class<? extends Node> nodeImpl, Long seed,
             String replayOutputFilename, String replayInputFilename)
             throws IllegalArgumentException, IOException {
-        pktsSent = 0;
-        waitingTOs = new ArrayList<Timeout>();
+        context = SimulationContext.current();
+        replay = context.getReplay();
+        synPartialOrderLogger = context.getPartialOrderLogger();
+
+        pktsSent = new AtomicInteger(0);
+        waitingTOs = new TimingWheel();
         inTransitMsgs = new ArrayList<Packet>();
+        groups = new HashMap<Integer, Set<Integer>>();
         parser = null;
 
         this.nodeImpl = nodeImpl;
@@ -130,7 +227,7 @@ public abstract class Manager {
                     "Error while executing get*rate functions: " + e);
         }
 
-        Replay.parent = this;
+        replay.parent = this;
 
         if (!replayOutputFilename.equals("")) {
             // initialize the replay output file
@@ -139,19 +236,17 @@ public abstract class Manager {
                 throw new IllegalArgumentException(
                         "Replay output file already exists");
             }
-            Replay.replayOut = new DataOutputStream(new FileOutputStream(
-                    replayOutputFilename));
+            replay.initOutput(new FileOutputStream(replayOutputFilename));
         } else {
-            Replay.replayOut = null;
+            replay.initOutput(null);
         }
 
         if (!replayInputFilename.equals("")) {
             // initialize the replay input file and grab the old seed
-            this.seed = Replay.init(new DataInputStream(new FileInputStream(
-                    replayInputFilename)), true);
+            this.seed = replay.init(new FileInputStream(replayInputFilename), true);
         } else {
             // make a new seed and initialize keyboard input
-            Replay.init(null, false);
+            replay.init(null, false);
             if (seed == null) {
                 this.seed = System.currentTimeMillis();
             } else {
@@ -159,8 +254,8 @@ public abstract class Manager {
             }
         }
 
-        if (Replay.replayOut != null) {
-            Replay.replayOut.writeLong(this.seed);
+        if (replay.replayOut != null) {
+            replay.replayOut.writeLong(this.seed);
         }
     }
 
@@ -176,7 +271,7 @@ public abstract class Manager {
      */
     protected String stopString() {
         String s = "MessageLayer exiting.\nNumber of packets sent: "
-                + String.valueOf(pktsSent);
+                + String.valueOf(pktsSent.get());
         if (userControl != FailureLvl.EVERYTHING) {
             s += "\nRandom Seed: " + seed;
         }
@@ -188,7 +283,48 @@ public abstract class Manager {
      */
     protected void stop() {
         System.out.println(stopString());
-        System.exit(0);
+        exit();
+    }
+
+    /**
+     * Exit the process, or if the manager shares the JVM with others, throw a
+     * StopException to unwind out of start().
+     */
+    protected void exit() {
+        if (exitOnStop) {
+            System.exit(0);
+        }
+        throw new StopException();
+    }
+
+    /**
+     * Set whether stop() exits the process. Turn this off to run several
+     * managers in the same JVM.
+     *
+     * @param exitOnStop
+     *            Whether stop() should exit the process
+     */
+    protected void setExitOnStop(boolean exitOnStop) {
+        this.exitOnStop = exitOnStop;
+    }
+
+    /**
+     * Override the failure, recovery, drop and delay rates that were read
+     * from the node class.
+     */
+    protected void setRates(double failureRate, double recoveryRate,
+            double dropRate, double delayRate) {
+        this.failureRate = failureRate;
+        this.recoveryRate = recoveryRate;
+        this.dropRate = dropRate;
+        this.delayRate = delayRate;
+    }
+
+    /**
+     * @return The number of packets sent so far
+     */
+    protected int getPacketsSent() {
+        return pktsSent.get();
     }
 
     /**
@@ -216,7 +352,84 @@ public abstract class Manager {
             throw new IllegalArgumentException(
                     "Either pkt is not valid, address is not valid, or TTL is not valid");
         }
-        pktsSent++;
+        pktsSent.incrementAndGet();
+    }
+
+    /**
+     * Send a packet to every member of a multicast group except the sender.
+     * Checks the arguments; subclasses put the packet on the channel.
+     * 
+     * @param fromNode
+     *            The node that is sending the packet
+     * @param group
+     *            The multicast group
+     * @param protocol
+     *            The protocol of the message
+     * @param payload
+     *            The payload to be sent, serialized to a byte array
+     * @throws IllegalArgumentException
+     *             If the send is invalid
+     */
+    protected void multicastPkt(Node fromNode, int group, int protocol, byte[] payload)
+            throws IllegalArgumentException {
+        if ((payload.length > Packet.MAX_PAYLOAD_SIZE)
+                || !isValidGroup(group) || !Packet.validAddress(fromNode.addr)) {
+
+            throw new IllegalArgumentException(
+                    "Either pkt is not valid, group is not valid, or address is not valid");
+        }
+        pktsSent.incrementAndGet();
+    }
+
+    /**
+     * Add a node to a multicast group.
+     * 
+     * @param node
+     *            The node joining
+     * @param group
+     *            The multicast group
+     * @throws IllegalArgumentException
+     *             If the group is invalid
+     */
+    protected void joinGroup(Node node, int group) throws IllegalArgumentException {
+        if (!isValidGroup(group)) {
+            throw new IllegalArgumentException("Invalid multicast group: " + group);
+        }
+        Set<Integer> members = groups.get(group);
+        if (members == null) {
+            members = new TreeSet<Integer>();
+            groups.put(group, members);
+        }
+        members.add(node.addr);
+    }
+
+    /**
+     * Remove a node from a multicast group.
+     * 
+     * @param node
+     *            The node leaving
+     * @param group
+     *            The multicast group
+     * @throws IllegalArgumentException
+     *             If the group is invalid
+     */
+    protected void leaveGroup(Node node, int group) throws IllegalArgumentException {
+        if (!isValidGroup(group)) {
+            throw new IllegalArgumentException("Invalid multicast group: " + group);
+        }
+        Set<Integer> members = groups.get(group);
+        if (members != null) {
+            members.remove(node.addr);
+        }
+    }
+
+    /**
+     * @param group
+     *            A multicast group id
+     * @return true if the id is a valid group
+     */
+    protected static boolean isValidGroup(int group) {
+        return group >= 0 && group <= MAX_ADDRESS;
     }
 
     /**
@@ -240,7 +453,44 @@ public abstract class Manager {
      *            The callback to call when the timer fires
      */
     protected void addTimeout(Node node, long timeout, Callback cb) {
-        waitingTOs.add(new Timeout(node, now() + timeout, cb));
+        scheduleTimeout(new Timeout(node, now() + timeout, cb));
+    }
+
+    /**
+     * Add a timer interrupt that will run a task in a particular timestep.
+     * 
+     * @param node
+     *            The node that added the the interrupt
+     * @param timeout
+     *            How many time steps to wait before firing
+     * @param task
+     *            The task to run when the timer fires
+     * @return A handle that can be used to cancel the interrupt
+     */
+    protected Timeout addTimeout(Node node, long timeout, Runnable task) {
+        Timeout to = new Timeout(node, now() + timeout, task);
+        scheduleTimeout(to);
+        return to;
+    }
+
+    /**
+     * Keep a new timeout until it fires.
+     * 
+     * @param to
+     *            The timeout
+     */
+    protected void scheduleTimeout(Timeout to) {
+        waitingTOs.add(to);
+    }
+
+    /**
+     * Forget a timeout that was cancelled.
+     * 
+     * @param to
+     *            The timeout
+     */
+    protected void removeTimeout(Timeout to) {
+        waitingTOs.remove(to);
     }
 
     /**
@@ -249,7 +499,14 @@ public abstract class Manager {
      * @return The time step
      */
     public long now() {
-        return time;
+        return context.now();
+    }
+
+    /**
+     * @return The context this manager runs in
+     */
+    public SimulationContext getContext() {
+        return context;
     }
 
     /**
@@ -271,7 +528,7 @@ public abstract class Manager {
      *            The time to set
      */
     protected void setTime(long time) {
-        this.time = time;
+        context.setTime(time);
     }
 
     /**
@@ -313,6 +570,6 @@ public abstract class Manager {
         int nodeAddr = node.addr;
         VectorTime vtime = vtimes.get(nodeAddr);
         vtime.step(nodeAddr);
-        synPartialOrderLogger.logEvent("" + vtime.toString(), eventStr);
+        synPartialOrderLogger.logEvent(vtime, eventStr);
     }
 }
@@ -35,6 +35,9 @@ import org.python.util.PythonInterpreter;
  *  -c --commandFile=<string>                         - Command file [default ]
  *  -f --failureLvlInt=<int>                          - Failure level, a number between 0 and 4 [default 4]
  *  -k --console=<boolean>                            - Launch with console [default false]
+ *  -d --eventDriven=<boolean>                        - Deliver packets as they arrive (emulation with a command file) [default false]
+ *  -D --discreteEvent=<boolean>                      - Jump from event to event (simulation with a command file) [default false]
+ *  -j --parallelism=<int>                            - Threads to run the nodes of each time step on (simulation) [default 0]
  *
  * Debugging Options:
  *  -L --synopticTotallyOrderedLogFilename=<string>   - Synoptic totally ordered log filename [default ]
@@ -132,6 +135,24 @@ public class MessageLayer {
 	 */
 	@Option(value="-k Console", aliases={"-console"})
 	public static boolean useConsole = false;
+
+	/**
+	 * Whether to deliver packets as they arrive in emulation
+	 */
+	@Option(value="-d Deliver packets as they arrive (emulation with a command file)", aliases={"-event-driven"})
+	public static boolean eventDriven = false;
+
+	/**
+	 * Whether to skip time steps in which nothing happens in simulation
+	 */
+	@Option(value="-D Jump from event to event (simulation with a command file)", aliases={"-discrete-event"})
+	public static boolean discreteEvent = false;
+
+	/**
+	 * Number of threads to run the nodes of each time step on in simulation
+	 */
+	@Option(value="-j Threads to run the nodes of each time step on (simulation)", aliases={"-parallelism"})
+	public static int parallelism = 0;
 	// end option group "Execution Options"
 
 
@@ -192,6 +213,38 @@ public class MessageLayer {
 	/**
 	 * The main method. Entry point to start a Manager
 	 */
+	/**
+	 * Load a node implementation, either a Java class or, for a name ending
+	 * in .py, the class of the same name in camel case from a Python module
+	 * in proj/
+	 *
+	 * @param nodeClass
+	 *            The class name, or the module's file name
+	 * @return The node class
+	 * @throws ClassNotFoundException
+	 *             If there is no such Java class
+	 */
+	static Class<? extends Node> loadNodeClass(String nodeClass) throws ClassNotFoundException {
+		if (!nodeClass.endsWith(".py")) {
+			return ClassLoader.getSystemClassLoader().loadClass(nodeClass).asSubclass(Node.class);
+		}
+
+		PySystemState sys = Py.getSystemState();
+		sys.path.append(new PyString("proj/"));
+		sys.path.append(new PyString("lib/edu/washington/cs/cse490h/lib/"));
+
+		String filename = nodeClass.substring(0, nodeClass.lastIndexOf(".py"));
+		String className = Utility.camelize(filename);
+
+		PythonInterpreter python = new PythonInterpreter();
+		python.exec(String.format("from %s import %s", filename, className));
+		PyType klass = (PyType)python.get(className);
+
+		@SuppressWarnings("unchecked")
+		Class<? extends Node> nodeImpl = (Class<? extends Node>)klass.__tojava__(Class.class);
+		return nodeImpl;
+	}
+
 	public static void main(String[] args) {
 		// this directly sets the static member options of the Main class
 		Options options = new Options (usage_string, MessageLayer.class);
@@ -245,28 +298,13 @@ public class MessageLayer {
 			failureLvl = possibleFailureLvls[failureLvlInt];
 		}
 
+		SimulationContext.current().setSynopticLogFilenames(
+				synopticTotalOrderLogFilename, synopticPartialOrderLogFilename);
+
 		try {
 			Manager manager = null;
 
-			Class<? extends Node> nodeImpl = null ;
-      if (nodeClass.endsWith(".py")) {
-        PySystemState sys = Py.getSystemState();
-        sys.path.append(new PyString("proj/"));
-        sys.path.append(new PyString("lib/edu/washington/cs/cse490h/lib/"));
-
-        String filename = nodeClass.substring(0, nodeClass.lastIndexOf(".py"));
-        String className = Utility.camelize(filename);
-
-        PythonInterpreter python = new PythonInterpreter();
-        python.exec(String.format("from %s import %s", filename, className));
-        PyType klass = (PyType)python.get(className);
-
-        @SuppressWarnings("unchecked")
-        Class<? extends Node> tempNodeImpl = (Class<? extends Node>)klass.__tojava__(Class.class);
-        nodeImpl = tempNodeImpl;
-      } else {
-        nodeImpl = ClassLoader.getSystemClassLoader().loadClass(nodeClass).asSubclass(Node.class);
-      }
+			Class<? extends Node> nodeImpl = loadNodeClass(nodeClass);
 
 			if (simulate) {
 				if(commandFile.equals("")) {
@@ -306,6 +344,8 @@ public class MessageLayer {
                             useConsole
                         );
 					}
+					((Simulator) manager).setDiscreteEvent(discreteEvent);
+					((Simulator) manager).setParallelism(parallelism);
 				} catch (IllegalArgumentException e) {
 					printError("Illegal arguments given to Simulator. Exception: " + e);
 					return;
@@ -359,6 +399,7 @@ public class MessageLayer {
                             useConsole
                         );
 					}
+					((Emulator) manager).setEventDriven(eventDriven);
 				} catch(UnknownHostException e) {
 					printError("Router host name is unkown! Exception: " + e);
 					return;
@@ -0,0 +1,190 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue for many producer threads and a single consumer thread,
+ * without locks. It is a ring of slots, each with a sequence number that says
+ * whether the slot is free for the producer claiming that position or holds
+ * an element for the consumer. Producers claim positions with a
+ * compare-and-set on the tail; the consumer owns the head and needs no atomic
+ * updates at all.
+ *
+ * A consumer waiting for an element parks, and a producer unparks it after
+ * adding one, so waiting costs nothing while elements keep coming.
+ */
+public class MpscQueue<E> {
+    private final AtomicReferenceArray<E> elements;
+    // slot i is free for position p when its sequence is p, and holds the
+    // element of position p when its sequence is p + 1
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    // next position producers claim
+    private final AtomicLong tail;
+    // next position the consumer takes. Only the consumer writes it.
+    private volatile long head;
+
+    // the consumer while it is parked waiting for an element
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity
+     *            How many elements the queue holds at most. Rounded up to a
+     *            power of two.
+     */
+    public MpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        tail = new AtomicLong(0);
+        head = 0;
+        waiter = null;
+    }
+
+    /**
+     * Add an element, from any thread.
+     *
+     * @param e
+     *            The element, not null
+     * @return false if the queue is full
+     */
+    public boolean offer(E e) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) (pos & mask);
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(slot, e);
+                    // publishes the element
+                    sequences.set(slot, pos + 1);
+                    break;
+                }
+            } else if (diff < 0) {
+                // the consumer has not freed this slot yet
+                return false;
+            }
+            // else another producer claimed the position first
+        }
+
+        Thread consumer = waiter;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Take the element at the head. Only call this from the consumer thread.
+     *
+     * @return The element, or null if the queue is empty
+     */
+    public E poll() {
+        long pos = head;
+        E e = take(pos);
+        if (e != null) {
+            head = pos + 1;
+        }
+        return e;
+    }
+
+    /**
+     * Take the element at the head, waiting for one if there is none. Only
+     * call this from the consumer thread.
+     *
+     * @param timeout
+     *            How long to wait at most
+     * @param unit
+     *            The unit of the timeout
+     * @return The element, or null if none came in time
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiter = Thread.currentThread();
+        try {
+            // a producer that adds an element after we set waiter unparks
+            // us, even if we have not parked yet
+            while ((e = poll()) == null) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, left);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return e;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Move every element in the queue into a collection, in order. Only call
+     * this from the consumer thread.
+     *
+     * @param c
+     *            The collection to add to
+     * @return How many elements were moved
+     */
+    public int drainTo(Collection<? super E> c) {
+        long pos = head;
+        long start = pos;
+        E e;
+        while ((e = take(pos)) != null) {
+            c.add(e);
+            pos++;
+        }
+        head = pos;
+        return (int) (pos - start);
+    }
+
+    /**
+     * @return How many elements the queue holds. With producers running
+     *         this is only an estimate.
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * Take the element of a position out of its slot and free the slot for
+     * the position one lap later.
+     *
+     * @return The element, or null if it has not been published yet
+     */
+    private E take(long pos) {
+        int slot = (int) (pos & mask);
+        if (sequences.get(slot) != pos + 1) {
+            return null;
+        }
+        E e = elements.get(slot);
+        elements.lazySet(slot, null);
+        sequences.set(slot, pos + mask + 1);
+        return e;
+    }
+}
@@ -170,6 +170,55 @@ public abstract class Node {
 		}
 	}
 
+	/**
+	 * Send a message to every member of a multicast group except this node.
+	 * The node does not have to be a member. Under the emulator the message
+	 * goes to the router once, and the router hands it to each member.
+	 * 
+	 * @param group
+	 *            The multicast group, 0 to 255
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 */
+	public void multicast(int group, int protocol, byte[] payload) {
+		try {
+			manager.multicastPkt(this, group, protocol, payload);
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Join a multicast group, to receive the messages multicast to it. The
+	 * node stays a member across crashes until it leaves.
+	 * 
+	 * @param group
+	 *            The multicast group, 0 to 255
+	 */
+	public void joinGroup(int group) {
+		try {
+			manager.joinGroup(this, group);
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Leave a multicast group.
+	 * 
+	 * @param group
+	 *            The multicast group, 0 to 255
+	 */
+	public void leaveGroup(int group) {
+		try {
+			manager.leaveGroup(this, group);
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Adds a timer interrupt for the current node. If timeout is 0, it just
 	 * invokes the method
@@ -200,6 +249,46 @@ public abstract class Node {
 		}
 	}
 
+	/**
+	 * Adds a timer interrupt for the current node that runs a task. Unlike
+	 * addTimeout, this does not look up a method by reflection, and the
+	 * returned handle can cancel the interrupt before it fires. If timer is 0,
+	 * it just runs the task.
+	 * 
+	 * @param task
+	 *            The task that should be run when the interrupt fires
+	 * @param timer
+	 *            How many time steps to wait before firing
+	 * @return A handle for the interrupt, or null if the task was run
+	 *         immediately
+	 */
+	public TimeoutHandle addTimer(Runnable task, int timer) {
+		if (timer <= 0) {
+			task.run();
+			return null;
+		}
+		return manager.addTimeout(this, timer, task);
+	}
+
+	/**
+	 * Gets the current time step of the execution.
+	 * 
+	 * @return The time step
+	 */
+	public long now() {
+		return manager.now();
+	}
+
+	/**
+	 * Gets the context of the simulation/emulation this node runs in, with its
+	 * RNG and storage root.
+	 *
+	 * @return The context
+	 */
+	public SimulationContext getContext() {
+		return manager.getContext();
+	}
+
 	/**
 	 * Gets a PersistentStorageReader object for the filename specified.
 	 * 
@@ -246,8 +335,8 @@ public abstract class Node {
 			handleDiskWriteEvent("creation of " + filename, "create:"
 					+ filename);
 		}
-		Utility.mkdirs(addr);
-		File f = new File(Utility.realFilename(addr, filename));
+		Utility.mkdirs(this);
+		File f = new File(Utility.realFilename(this, filename));
 		return new PersistentStorageWriter(this, f, append);
 	}
 
@@ -269,8 +358,8 @@ public abstract class Node {
 			handleDiskWriteEvent("creation of " + filename, "create:"
 					+ filename);
 		}
-		Utility.mkdirs(addr);
-		File f = new File(Utility.realFilename(addr, filename));
+		Utility.mkdirs(this);
+		File f = new File(Utility.realFilename(this, filename));
 		return new PersistentStorageOutputStream(this, f, append);
 	}
 
@@ -2,26 +2,48 @@ package edu.washington.cs.cse490h.lib;
 
 import java.lang.Thread;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 /**
  * In a separate thread, this class listens to incoming messages from the router
  * and stores the data received.
  */
 public class NodeServer implements Runnable {
+	/**
+	 * How many received packets the server holds for the emulator at most.
+	 * Packets that arrive while it holds this many are dropped, as a real
+	 * network drops packets a host cannot take in fast enough.
+	 */
+	public static int INBOUND_CAPACITY = 4096;
+
 	private Socket socket;
-	private ArrayList<Packet> packetsReceived;
-	private InputStream in;
-	private OutputStream out;
+	private SocketChannel channel;
+	// filled by the reader thread and drained by the emulator without
+	// locking; the emulator may wait on it for the next packet
+	private MpscQueue<Packet> packetsReceived;
+	// packets dropped because the queue was full, and the most the queue has
+	// held
+	private AtomicLong packetsDropped;
+	private volatile int maxQueueDepth;
+	// reads and writes packets on the channel
+	private PacketCodec codec;
 	private int address;
 	private Emulator parent;
 
 	// termination state variables
-	private boolean gotFIN;
+	private volatile boolean gotFIN;
 	private boolean finished;
+	// released when the reader thread stops, after it got a FIN or the socket
+	// closed
+	private CountDownLatch readerDone;
 
 	/**
 	 * Creates a new NodeServer.
@@ -38,17 +60,25 @@ public class NodeServer implements Runnable {
 	 *             If there is a problem creating the socket
 	 */
 	public NodeServer(String name, int port, int nodeAddr, Emulator parent) throws IOException{
-		socket = new Socket(name, port);
-		packetsReceived = new ArrayList<Packet>();
-		in = socket.getInputStream();
-		out = socket.getOutputStream();
+		channel = SocketChannel.open(new InetSocketAddress(name, port));
+		socket = channel.socket();
+		// Disable Nagle, as the router does on its end
+		socket.setTcpNoDelay(true);
+		packetsReceived = new MpscQueue<Packet>(INBOUND_CAPACITY);
+		packetsDropped = new AtomicLong(0);
+		maxQueueDepth = 0;
+		codec = new PacketCodec(channel, channel);
 		gotFIN = false;
+		readerDone = new CountDownLatch(1);
 		this.parent = parent;
 		finished = false;
 		
 		address = nodeAddr;
-		out.write(nodeAddr);
-		out.flush();
+		ByteBuffer addrByte = ByteBuffer.allocate(1);
+		addrByte.put((byte) nodeAddr).flip();
+		while (addrByte.hasRemaining()) {
+			channel.write(addrByte);
+		}
 		
 		Thread t = new Thread(this);
 		t.start();
@@ -57,7 +87,7 @@ public class NodeServer implements Runnable {
 	public void run() {
 		try {
 			while(!finished && !socket.isClosed()) {
-				Packet packet = Packet.unpack(in);
+				Packet packet = codec.read();
 
 				if(packet == null) {
 					// The other side closed the connection
@@ -67,6 +97,7 @@ public class NodeServer implements Runnable {
 
 				if((packet.getFlags() & Packet.FIN) != 0) {
 					gotFIN = true;
+					readerDone.countDown();
 					return;
 				}
 
@@ -77,11 +108,13 @@ public class NodeServer implements Runnable {
 			System.err.println("Encountered IOException when trying to receive packet.");
 			//e.printStackTrace();
 		}
+		readerDone.countDown();
 
 		try {
 			socket.close();
 		} catch (IOException e) {
 		}
+		codec.release();
 		synchronized (parent) {
 			if (parent != null) {
 				parent.IOFinish();
@@ -95,24 +128,81 @@ public class NodeServer implements Runnable {
 	 * @return The first packet stored
 	 */
 	protected Packet getPacket() {
-		synchronized (packetsReceived) {
-			if (packetsReceived.isEmpty()) {
-				return null;
-			}
-			return packetsReceived.remove(0);
-		}
+		return packetsReceived.poll();
+	}
+
+	/**
+	 * Gets the first packet stored, waiting for one to arrive if there is
+	 * none yet
+	 * 
+	 * @param timeout
+	 *            How long to wait at most
+	 * @param unit
+	 *            The unit of the timeout
+	 * @return The first packet stored, or null if none arrived in time
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	protected Packet getPacket(long timeout, TimeUnit unit) throws InterruptedException {
+		return packetsReceived.poll(timeout, unit);
+	}
+
+	/**
+	 * Moves all the packets stored into a list, in the order they arrived.
+	 * This is much cheaper than fetching them one by one.
+	 * 
+	 * @param packets
+	 *            The list to add the packets to
+	 * @return The number of packets moved
+	 */
+	protected int drainPackets(List<Packet> packets) {
+		return packetsReceived.drainTo(packets);
+	}
+
+	/**
+	 * @return The number of packets stored and not fetched yet
+	 */
+	public int getQueueDepth() {
+		return packetsReceived.size();
+	}
+
+	/**
+	 * @return The most packets that have been stored at once
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
 	}
 
 	/**
-	 * Send a packet to the EmulatedNode at the router
+	 * @return The number of packets dropped because INBOUND_CAPACITY packets
+	 *         were already stored
+	 */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+
+	/**
+	 * Send a packet to the EmulatedNode at the router. The packet is only
+	 * queued; it goes out with the others sent since the last flush.
 	 * 
 	 * @param pkt
-	 *            Serialized version of the packet
+	 *            The packet
 	 */
-	protected void send(byte[] pkt) {
+	protected void send(Packet pkt) {
 		try {
-			out.write(pkt);
-			out.flush();
+			codec.queue(pkt);
+		} catch (IOException e) {
+			finished = true;
+			//e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write the packets sent since the last flush to the router, together.
+	 */
+	protected void flush() {
+		try {
+			codec.flush();
 		} catch (IOException e) {
 			finished = true;
 			//e.printStackTrace();
@@ -126,8 +216,15 @@ public class NodeServer implements Runnable {
 	 *            The packet to store
 	 */
 	private void storePacket(Packet packet) {
-		synchronized (packetsReceived) {
-			packetsReceived.add(packet);
+		if (!packetsReceived.offer(packet)) {
+			if (packetsDropped.getAndIncrement() == 0) {
+				System.err.println("Inbound queue is full, dropping packets.");
+			}
+			return;
+		}
+		int depth = packetsReceived.size();
+		if (depth > maxQueueDepth) {
+			maxQueueDepth = depth;
 		}
 	}
 	
@@ -137,37 +234,38 @@ public class NodeServer implements Runnable {
 	protected void close() {
 		try {
 			Packet fin = Packet.getFinPacket(address);
-			send(fin.pack());
+			send(fin);
+			flush();
 
 			// wait until the router acknowledges our closing attempt
-			while (!gotFIN) {
-				if (socket.isClosed()) {
-					// to prevent a race condition:
-					if (!gotFIN) {
-						throw new IOException("Socket closed before we got a FIN back!");
-					}
-				}
-				Thread.yield();
+			try {
+				readerDone.await();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for a FIN back!");
+			}
+			if (!gotFIN) {
+				throw new IOException("Socket closed before we got a FIN back!");
 			}
 
 			// send back all the in-transit messages
-			synchronized (packetsReceived) {
-				for (Packet pkt : packetsReceived) {
-					send(pkt.pack());
-				}
+			List<Packet> unprocessed = new ArrayList<Packet>();
+			packetsReceived.drainTo(unprocessed);
+			for (Packet pkt : unprocessed) {
+				send(pkt);
 			}
 			for (Packet pkt : parent.inTransitMsgs) {
-				send(pkt.pack());
+				send(pkt);
 			}
 
 			// send a second fin to finalize the close
-			send(fin.pack());
+			send(fin);
+			flush();
 		} catch (IOException e) {
 			System.err.println("Error while sending back packets.");
 			//e.printStackTrace();
 		}
 
-		packetsReceived.clear();
+		packetsReceived.drainTo(new ArrayList<Packet>());
 		synchronized (parent) {
 			parent = null;
 		}
@@ -179,5 +277,6 @@ public class NodeServer implements Runnable {
 			System.err.println("Error while closing socket!");
 			//e.printStackTrace();
 		}
+		codec.release();
 	}
 }
@@ -1,11 +1,10 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * <pre>   
@@ -24,6 +23,11 @@ public class Packet {
 	
 	protected static final byte FIN = 1;
 	protected static final byte REPLAY = 2;
+	// the destination is a multicast group rather than a node
+	protected static final byte MULTICAST = 4;
+	// tell the router that the source joins or leaves the destination group
+	protected static final byte JOIN_GROUP = 8;
+	protected static final byte LEAVE_GROUP = 16;
 	
 	private byte[] payload;
 
@@ -85,6 +89,20 @@ public class Packet {
 		this.payload = payload;
 	}
 
+	/**
+	 * Constructs a Packet from fields read off the wire.
+	 * 
+	 * @return The packet
+	 * @throws CorruptPacketException
+	 *             If the fields do not make a valid packet
+	 */
+	static Packet fromWire(int dest, int src, int protocol, int flags, byte[] payload) throws CorruptPacketException {
+		if (!isValid(dest, src, payload.length + Packet.HEADER_SIZE)) {
+			throw new CorruptPacketException();
+		}
+		return new Packet(dest, src, protocol, flags, payload);
+	}
+
 	/**
 	 * Constructs a new FIN packet that is meant to signal a node quit in
 	 * Emulator mode and facilitate connection closing
@@ -113,11 +131,55 @@ public class Packet {
 		return new Packet(addr, addr, protocol, REPLAY, payload);
 	}
 
+	/**
+	 * Constructs a new packet to a multicast group. The router hands it to
+	 * every member of the group except the source.
+	 * 
+	 * @param group
+	 *            The group
+	 * @param src
+	 *            The address of the sender
+	 * @param protocol
+	 *            The protocol of the message
+	 * @param payload
+	 *            The payload of the message
+	 * @return The MULTICAST packet
+	 */
+	protected static Packet getMulticastPacket(int group, int src, int protocol, byte[] payload) {
+		return new Packet(group, src, protocol, MULTICAST, payload);
+	}
+
+	/**
+	 * Constructs a new packet that tells the router a node joins or leaves a
+	 * multicast group
+	 * 
+	 * @param group
+	 *            The group
+	 * @param node
+	 *            The address of the node
+	 * @param join
+	 *            true to join the group, false to leave it
+	 * @return The JOIN_GROUP or LEAVE_GROUP packet
+	 */
+	protected static Packet getGroupPacket(int group, int node, boolean join) {
+		return new Packet(group, node, 0, join ? JOIN_GROUP : LEAVE_GROUP, new byte[0]);
+	}
+
+	/**
+	 * @return true if the destination of this packet is a multicast group
+	 */
+	public boolean isMulticast() {
+		return (flags & MULTICAST) != 0;
+	}
+
 	@Override
 	public String toString() {
 		if((flags & FIN) != 0) {
 			return new String("Packet: " + src + ": FIN");
 		}
+		if((flags & (JOIN_GROUP | LEAVE_GROUP)) != 0) {
+			return new String("Packet: " + src + ((flags & JOIN_GROUP) != 0 ? ": JOIN " : ": LEAVE ") + dest);
+		}
         if (Utility.byteArrayToString(payload).matches("\\A\\p{ASCII}*\\z")) {
             return new String("Packet: " + src + "->" + dest + " protocol: " + protocol + 
                     " contents: " + Utility.byteArrayToString(payload));
@@ -174,23 +236,24 @@ public class Packet {
 	 * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
 	 */
 	protected byte[] pack() {	
-		try {
-			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			DataOutputStream out = new DataOutputStream(byteStream);
-			out.writeByte(dest);
-			out.writeByte(src);
-			out.writeByte(protocol);
-			out.writeByte(flags);
-			out.writeInt(payload.length);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		putHeader(buf);
+		buf.put(payload);
+		return buf.array();
+	}
 
-			out.write(payload, 0, payload.length);
-			
-			out.flush();
-			return byteStream.toByteArray();
-		} catch(IOException e) {
-			e.printStackTrace();
-		}
-		return null;
+	/**
+	 * Write the header of the packet, as laid out by pack, into a buffer.
+	 * 
+	 * @param buf
+	 *            The buffer, with at least HEADER_SIZE bytes remaining
+	 */
+	void putHeader(ByteBuffer buf) {
+		buf.put((byte) dest);
+		buf.put((byte) src);
+		buf.put((byte) protocol);
+		buf.put((byte) flags);
+		buf.putInt(payload.length);
 	}
 
 	/**
@@ -204,7 +267,25 @@ public class Packet {
 	 *             If the byte[] representation was corrupted
 	 */
 	protected static Packet unpack(byte[] packedPacket) throws CorruptPacketException{
-		return unpack( new DataInputStream(new ByteArrayInputStream(packedPacket)) );
+		if (packedPacket.length == 0) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(packedPacket);
+		try {
+			int dest = buf.get() & 0xFF;
+			int src = buf.get() & 0xFF;
+			int protocol = buf.get() & 0xFF;
+			int flags = buf.get() & 0xFF;
+			int payloadLength = buf.getInt();
+			if (payloadLength < 0 || payloadLength > buf.remaining()) {
+				throw new CorruptPacketException();
+			}
+			byte[] payload = new byte[payloadLength];
+			buf.get(payload);
+			return fromWire(dest, src, protocol, flags, payload);
+		} catch (BufferUnderflowException e) {
+			throw new CorruptPacketException();
+		}
 	}
 
 	/**
@@ -0,0 +1,382 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+
+import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
+
+/**
+ * Reads and writes Packets in their wire format (see Packet.pack) directly on
+ * byte channels, without building a byte[] per packet.
+ *
+ * A write puts the header into a direct buffer and hands it to the channel
+ * together with the payload array in one gathering write, so the payload is
+ * never copied into a bigger array first. Packets can also be queued and
+ * written later by flush, so that many packets go out in one gathering write:
+ * one system call and, with TCP_NODELAY, as few segments as the bytes need
+ * rather than one per packet. Reads go through a direct buffer
+ * that is reused for every packet; only the payload array is allocated per
+ * packet, and a payload larger than the buffer is read straight into it.
+ *
+ * The direct buffers are expensive to allocate, so they are taken from a pool
+ * shared by all codecs and given back by release. Writes may come from
+ * several threads; reads must all come from the same thread.
+ */
+public class PacketCodec {
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+    // how many packets can be queued before they are flushed regardless
+    public static final int MAX_QUEUED = 64;
+
+    // buffers given back by released codecs, at most MAX_POOLED of each kind
+    private static final int MAX_POOLED = 64;
+    private static final LinkedList<ByteBuffer> headerPool = new LinkedList<ByteBuffer>();
+    private static final LinkedList<ByteBuffer> readPool = new LinkedList<ByteBuffer>();
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+
+    // headers of the queued packets, one after the other
+    private ByteBuffer headers;
+    // the header and payload of each queued packet, as handed to the
+    // gathering write
+    private final ByteBuffer[] gather;
+    private int queued;
+    private final Object writeLock;
+
+    // bytes read from the channel but not decoded yet, between position and
+    // limit
+    private ByteBuffer readBuffer;
+
+    /**
+     * @param in
+     *            The channel to read packets from, or null if this codec only
+     *            writes
+     * @param out
+     *            The channel to write packets to, or null if this codec only
+     *            reads
+     */
+    public PacketCodec(ReadableByteChannel in, WritableByteChannel out) {
+        this.in = in;
+        this.out = out;
+        gather = new ByteBuffer[2 * MAX_QUEUED];
+        queued = 0;
+        writeLock = new Object();
+        if (out != null) {
+            headers = acquire(headerPool, Packet.HEADER_SIZE * MAX_QUEUED);
+        }
+        if (in != null) {
+            readBuffer = acquire(readPool, READ_BUFFER_SIZE);
+            readBuffer.limit(0);
+        }
+    }
+
+    /**
+     * Write a packet to the channel, blocking until all of it has been
+     * written. Packets queued before it are written first.
+     *
+     * @param pkt
+     *            The packet to write
+     * @throws IOException
+     *             If the channel fails
+     */
+    public void write(Packet pkt) throws IOException {
+        synchronized (writeLock) {
+            queue(pkt);
+            flush();
+        }
+    }
+
+    /**
+     * Queue a packet to be written by the next flush. The payload is not
+     * copied, so it must not change until then. If MAX_QUEUED packets are
+     * already queued, they are flushed first.
+     *
+     * @param pkt
+     *            The packet to queue
+     * @throws IOException
+     *             If the channel fails while flushing
+     */
+    public void queue(Packet pkt) throws IOException {
+        queue(pkt, null);
+    }
+
+    /**
+     * Queue a packet whose header has already been encoded, to be written by
+     * the next flush. This lets a packet that goes to many channels be
+     * encoded once; neither the header nor the payload is copied.
+     *
+     * @param pkt
+     *            The packet to queue
+     * @param header
+     *            The packet's header, as made by encodeHeader, or null to
+     *            encode it here. Its position is left alone.
+     * @throws IOException
+     *             If the channel fails while flushing
+     */
+    public void queue(Packet pkt, ByteBuffer header) throws IOException {
+        synchronized (writeLock) {
+            if (headers == null) {
+                throw new IOException("Codec has been released");
+            }
+            if (queued == MAX_QUEUED) {
+                flush();
+            }
+            if (header == null) {
+                int start = queued * Packet.HEADER_SIZE;
+                headers.limit(start + Packet.HEADER_SIZE).position(start);
+                header = headers.slice();
+                pkt.putHeader(header);
+                header.flip();
+            } else {
+                header = header.duplicate();
+            }
+            gather[2 * queued] = header;
+            gather[2 * queued + 1] = ByteBuffer.wrap(pkt.getPayload());
+            queued++;
+        }
+    }
+
+    /**
+     * Write all the queued packets to the channel, blocking until all of them
+     * have been written.
+     *
+     * @throws IOException
+     *             If the channel fails. The packets not written are dropped.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            int count = 2 * queued;
+            try {
+                if (out instanceof GatheringByteChannel) {
+                    GatheringByteChannel channel = (GatheringByteChannel) out;
+                    int first = 0;
+                    while (first < count) {
+                        channel.write(gather, first, count - first);
+                        while (first < count && !gather[first].hasRemaining()) {
+                            first++;
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        while (gather[i].hasRemaining()) {
+                            out.write(gather[i]);
+                        }
+                    }
+                }
+            } finally {
+                clearQueue();
+            }
+        }
+    }
+
+    /**
+     * @return The number of packets queued and not flushed yet
+     */
+    public int getQueued() {
+        synchronized (writeLock) {
+            return queued;
+        }
+    }
+
+    private void clearQueue() {
+        for (int i = 0; i < 2 * queued; i++) {
+            gather[i] = null;
+        }
+        queued = 0;
+    }
+
+    /**
+     * Read the next packet from the channel, blocking until all of it has
+     * arrived.
+     *
+     * @return The packet, or null if the channel reached its end cleanly
+     *         between two packets
+     * @throws CorruptPacketException
+     *             If the header is invalid, or the channel ends in the middle
+     *             of a packet
+     * @throws IOException
+     *             If the channel fails
+     */
+    public Packet read() throws IOException {
+        if (readBuffer == null) {
+            throw new IOException("Codec has been released");
+        }
+        if (!fill(Packet.HEADER_SIZE)) {
+            if (readBuffer.hasRemaining()) {
+                throw new CorruptPacketException();
+            }
+            return null;
+        }
+
+        int dest = readBuffer.get() & 0xFF;
+        int src = readBuffer.get() & 0xFF;
+        int protocol = readBuffer.get() & 0xFF;
+        int flags = readBuffer.get() & 0xFF;
+        int payloadLength = readBuffer.getInt();
+        if (payloadLength < 0 || payloadLength > Packet.MAX_PAYLOAD_SIZE) {
+            throw new CorruptPacketException();
+        }
+
+        byte[] payload = new byte[payloadLength];
+        int buffered = Math.min(payloadLength, readBuffer.remaining());
+        readBuffer.get(payload, 0, buffered);
+        if (buffered < payloadLength) {
+            // the rest goes straight into the payload, skipping the buffer
+            ByteBuffer rest = ByteBuffer.wrap(payload, buffered, payloadLength - buffered);
+            while (rest.hasRemaining()) {
+                if (in.read(rest) < 0) {
+                    throw new CorruptPacketException();
+                }
+            }
+        }
+
+        return Packet.fromWire(dest, src, protocol, flags, payload);
+    }
+
+    /**
+     * Read from the channel until at least the given number of bytes are
+     * buffered.
+     *
+     * @return false if the channel ended first
+     */
+    private boolean fill(int needed) throws IOException {
+        if (readBuffer.remaining() >= needed) {
+            return true;
+        }
+        readBuffer.compact();
+        try {
+            while (readBuffer.position() < needed) {
+                if (in.read(readBuffer) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            readBuffer.flip();
+        }
+    }
+
+    /**
+     * Check whether a whole packet has been received and buffered, so that
+     * read would return it without blocking. Only call this from the thread
+     * that reads.
+     *
+     * @return true if read will not block
+     */
+    public boolean hasBufferedPacket() {
+        if (readBuffer == null) {
+            return false;
+        }
+        try {
+            int length = frameLength(readBuffer);
+            return length >= 0 && readBuffer.remaining() >= length;
+        } catch (CorruptPacketException e) {
+            // read reports it
+            return true;
+        }
+    }
+
+    /**
+     * Find out how long the packet starting at the buffer's position is on
+     * the wire, header included. Nothing is consumed.
+     *
+     * @param buf
+     *            Bytes received, between position and limit
+     * @return The length, or -1 if the buffer does not hold the whole header
+     *         yet
+     * @throws CorruptPacketException
+     *             If the header gives an invalid length
+     */
+    static int frameLength(ByteBuffer buf) throws CorruptPacketException {
+        if (buf.remaining() < Packet.HEADER_SIZE) {
+            return -1;
+        }
+        int payloadLength = buf.getInt(buf.position() + 4);
+        if (payloadLength < 0 || payloadLength > Packet.MAX_PAYLOAD_SIZE) {
+            throw new CorruptPacketException();
+        }
+        return Packet.HEADER_SIZE + payloadLength;
+    }
+
+    /**
+     * Decode the packet starting at the buffer's position, if all of it has
+     * been received. This never blocks, for use with non-blocking channels.
+     *
+     * @param buf
+     *            Bytes received, between position and limit
+     * @return The packet, with the buffer's position moved past it, or null
+     *         if the buffer does not hold all of it yet
+     * @throws CorruptPacketException
+     *             If the header is invalid
+     */
+    static Packet decode(ByteBuffer buf) throws CorruptPacketException {
+        int length = frameLength(buf);
+        if (length < 0 || buf.remaining() < length) {
+            return null;
+        }
+        int dest = buf.get() & 0xFF;
+        int src = buf.get() & 0xFF;
+        int protocol = buf.get() & 0xFF;
+        int flags = buf.get() & 0xFF;
+        byte[] payload = new byte[buf.getInt()];
+        buf.get(payload);
+        return Packet.fromWire(dest, src, protocol, flags, payload);
+    }
+
+    /**
+     * Encode the header of a packet on its own, for callers that queue the
+     * header and payload as separate buffers for a later gathering write.
+     *
+     * @param pkt
+     *            The packet
+     * @return A buffer holding the header, ready to be written
+     */
+    static ByteBuffer encodeHeader(Packet pkt) {
+        ByteBuffer header = ByteBuffer.allocate(Packet.HEADER_SIZE);
+        pkt.putHeader(header);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Give the codec's buffers back to the pool. The codec cannot be used
+     * afterwards; the channels are left open and packets still queued are
+     * dropped. No read may be in progress.
+     */
+    public void release() {
+        synchronized (writeLock) {
+            clearQueue();
+            if (headers != null) {
+                give(headerPool, headers);
+                headers = null;
+            }
+            if (readBuffer != null) {
+                give(readPool, readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+
+    private static ByteBuffer acquire(LinkedList<ByteBuffer> pool, int capacity) {
+        synchronized (pool) {
+            if (!pool.isEmpty()) {
+                ByteBuffer buf = pool.removeFirst();
+                buf.clear();
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private static void give(LinkedList<ByteBuffer> pool, ByteBuffer buf) {
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) {
+                pool.addFirst(buf);
+            }
+        }
+    }
+}
@@ -14,7 +14,7 @@ public class PersistentStorageInputStream extends FileInputStream {
 
     PersistentStorageInputStream(Node n, String filename)
             throws FileNotFoundException {
-        super(Utility.realFilename(n.addr, filename));
+        super(Utility.realFilename(n, filename));
         this.n = n;
     }
 
@@ -15,7 +15,7 @@ public class PersistentStorageReader extends BufferedReader {
 
     PersistentStorageReader(Node n, String filename)
             throws FileNotFoundException {
-        super(new FileReader(Utility.realFilename(n.addr, filename)));
+        super(new FileReader(Utility.realFilename(n, filename)));
         this.n = n;
     }
 
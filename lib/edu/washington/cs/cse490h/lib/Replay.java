@@ -3,6 +3,8 @@ package edu.washington.cs.cse490h.lib;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
@@ -17,6 +19,8 @@ import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
  * This utility is meant to provide an opportunity to output more debugging
  * information about a previous execution. In the emulator environment
  * particularly, the execution may not be valid if the implementation changes.
+ * 
+ * Each SimulationContext has its own Replay, set up by its manager.
  */
 public class Replay {
 	static class ReplayException extends RuntimeException {
@@ -26,12 +30,15 @@ public class Replay {
 		}
 	}
 
-	protected static Manager parent;
+	protected Manager parent;
 
-	private static DataInputStream replayIn;
-	protected static DataOutputStream replayOut;
-	private static BufferedReader keyboard;
-	private static boolean controlInput;	//TODO: enable replay without user input
+	// packets are read from and recorded to the replay files through their
+	// channels; replayOut is for the seed only
+	private PacketCodec replayIn;
+	protected DataOutputStream replayOut;
+	private PacketCodec replayWriter;
+	private BufferedReader keyboard;
+	private boolean controlInput;	//TODO: enable replay without user input
 
 	// protocol values for replay packets
 	protected static final int NULL = 0;
@@ -42,31 +49,64 @@ public class Replay {
 	 * Initialize the replay.
 	 * 
 	 * @param in
-	 *            The datastream for the replay input file, or null if this is
-	 *            not a replay execution
+	 *            The replay input file, or null if this is not a replay
+	 *            execution
 	 * @return The seed for the replay if this is a replay execution, -1
 	 *         otherwise
 	 * @throws IOException
 	 *             If there is a problem with the keyboard BufferedReader
 	 */
-	protected static long init(DataInputStream in, boolean controlInput) throws IOException {
-		replayIn = in;
-		Replay.controlInput = controlInput;
+	protected long init(FileInputStream in, boolean controlInput) throws IOException {
+		this.controlInput = controlInput;
 
 		if (in != null) {
-			return Replay.replayIn.readLong();
+			// the stream is unbuffered, so the packets start right after the
+			// seed in the file's channel
+			long seed = new DataInputStream(in).readLong();
+			replayIn = new PacketCodec(in.getChannel(), null);
+			return seed;
 		} else {
+			replayIn = null;
 			keyboard = new BufferedReader(new InputStreamReader(System.in));
 			return -1;
 		}
 	}
 
+	/**
+	 * Set up the replay output file.
+	 * 
+	 * @param out
+	 *            The replay output file, or null if this execution is not
+	 *            recorded
+	 */
+	protected void initOutput(FileOutputStream out) {
+		if (out != null) {
+			replayOut = new DataOutputStream(out);
+			replayWriter = new PacketCodec(null, out.getChannel());
+		} else {
+			replayOut = null;
+			replayWriter = null;
+		}
+	}
+
+	/**
+	 * Record a packet to the replay output file.
+	 * 
+	 * @param pkt
+	 *            The packet to record
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	protected void record(Packet pkt) throws IOException {
+		replayWriter.write(pkt);
+	}
+
 	/**
 	 * Test if this is a replay execution
 	 * 
 	 * @return true if this is a replay execution, false otherwise
 	 */
-	protected static boolean isReplaying() {
+	protected boolean isReplaying() {
 		return replayIn != null;
 	}
 
@@ -145,12 +185,14 @@ public class Replay {
 	 * @return The packet that was read
 	 * @throws CorruptPacketException
 	 *             If there is an error in the read packet
+	 * @throws IOException
+	 *             If the replay input file cannot be read
 	 */
-	protected static Packet getPacket() throws CorruptPacketException {
+	protected Packet getPacket() throws IOException {
 		Packet pkt;
 		
 		do {
-			pkt = Packet.unpack(replayIn);
+			pkt = replayIn.read();
 			if (pkt == null) {
 				System.out.println("Reached end of deterministic replay.  Stopping...");
 				parent.stop();
@@ -170,7 +212,7 @@ public class Replay {
 	 * @throws IOException
 	 *             If there was an error while reading the line.
 	 */
-	protected static String getLine() throws IOException{
+	protected String getLine() throws IOException{
 		String input;
 
 		if (replayIn != null && controlInput) {
@@ -178,7 +220,7 @@ public class Replay {
 			Packet line;
 			try {
 				line = getPacket();
-			} catch (CorruptPacketException e) {
+			} catch (IOException e) {
 				throw new ReplayException("Error while reading replay file");
 			}
 
@@ -199,9 +241,9 @@ public class Replay {
 			// record the user input to the replay output file
 			try {
 				if (input != null) {
-					replayOut.write(Replay.getUserPacket(input).pack());
+					record(Replay.getUserPacket(input));
 				} else {
-					replayOut.write(Replay.getUserPacket("").pack());
+					record(Replay.getUserPacket(""));
 				}
 			} catch (IOException e) {
 				throw new ReplayException("Error while writing replay file");
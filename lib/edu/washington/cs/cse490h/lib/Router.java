@@ -1,13 +1,19 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.io.IOException;
 import java.lang.Integer;
 
@@ -31,14 +37,18 @@ import plume.Options;
  *
  * Execution Options:
  *   -p --localPort=<int>   - Local UDP port [default -1]
+ *   -n --nio=<boolean>     - Serve all nodes from one thread with non-blocking
+ *                            sockets (see SelectorRouter) [default false]
  *
  * </pre>
  */
 public class Router {
 	private static Router router = null;
-	private ServerSocket socket;
+	private ServerSocketChannel socket;
 	// emulatedNodes is also used as a lock
 	protected Map<Integer, NodeContainer> emulatedNodes;
+	// Maps: multicast group -> addresses of its members. Also used as a lock.
+	private Map<Integer, Set<Integer>> groups;
 
 	/**
 	 * Construct a new Router
@@ -49,8 +59,10 @@ public class Router {
 	 *             If there is an error creating the socket server
 	 */
 	private Router(int port) throws IOException {
-		socket = new ServerSocket(port);
+		socket = ServerSocketChannel.open();
+		socket.socket().bind(new InetSocketAddress(port));
 		emulatedNodes = Collections.synchronizedMap( new HashMap<Integer, NodeContainer>() ) ;
+		groups = new HashMap<Integer, Set<Integer>>();
 	}
 
 	/**
@@ -62,7 +74,8 @@ public class Router {
 
 		while(true) {
 			try {
-				Socket nodeSocket = socket.accept();
+				SocketChannel nodeChannel = socket.accept();
+				Socket nodeSocket = nodeChannel.socket();
 
 				InetAddress ipAddress = nodeSocket.getInetAddress();
 				int port = nodeSocket.getPort();
@@ -77,14 +90,19 @@ public class Router {
 					}
 
 					// find a virtual address to assign to the new node
-					int address = nodeSocket.getInputStream().read();
+					ByteBuffer addrByte = ByteBuffer.allocate(1);
+					if (nodeChannel.read(addrByte) < 0) {
+						nodeSocket.close();
+						continue;
+					}
+					int address = addrByte.get(0) & 0xFF;
 					
 					// Disable Nagle
 					nodeSocket.setTcpNoDelay(true);
 
 					System.out.println("Connecting to " + ipAddress + ":" + port + " with addr: " + address);
 
-					EmulatedNode newNode = new EmulatedNode(this, nodeSocket, address, ipAddress, port);
+					EmulatedNode newNode = new EmulatedNode(this, nodeChannel, address, ipAddress, port);
 					nodeJoin(address, newNode);
 				}
 			}catch(IOException e) {
@@ -114,6 +132,66 @@ public class Router {
 		emulatedNodes.get(address).quit(queue);
 	}
 
+	/**
+	 * Called by an emulated node to write out the packets it has queued for
+	 * other nodes
+	 *
+	 * @param addresses
+	 *            The virtual addresses of the nodes it sent to
+	 */
+	protected void flushNodes(List<Integer> addresses) {
+		for (Integer address : addresses) {
+			NodeContainer node = emulatedNodes.get(address);
+			if (node != null) {
+				node.flush();
+			}
+		}
+	}
+
+	/**
+	 * Called by an emulated node to join or leave a multicast group. A node
+	 * stays a member while it is down, so that multicasts to it are queued.
+	 *
+	 * @param group
+	 *            The multicast group
+	 * @param address
+	 *            The virtual address of the node
+	 * @param join
+	 *            true to join the group, false to leave it
+	 */
+	protected void groupChange(int group, int address, boolean join) {
+		synchronized(groups) {
+			Set<Integer> members = groups.get(group);
+			if (members == null) {
+				members = new TreeSet<Integer>();
+				groups.put(group, members);
+			}
+			if (join) {
+				members.add(address);
+			} else {
+				members.remove(address);
+			}
+		}
+		System.out.println("Node " + address + (join ? " joined" : " left") + " group " + group);
+	}
+
+	/**
+	 * Get the members of a multicast group
+	 *
+	 * @param group
+	 *            The multicast group
+	 * @return The virtual addresses of the members, as of now
+	 */
+	protected List<Integer> getGroupMembers(int group) {
+		synchronized(groups) {
+			Set<Integer> members = groups.get(group);
+			if (members == null) {
+				return Collections.emptyList();
+			}
+			return new ArrayList<Integer>(members);
+		}
+	}
+
 	/**
 	 * Called by the start thread to create a new emulated node
 	 *
@@ -180,6 +258,12 @@ public class Router {
 	@Option(value="-p Local port", aliases={"-local-port"})
 	// TODO: specify a sane default
 	public static int localPort = -1;
+
+	/**
+	 * Serve all nodes from one selector thread
+	 */
+	@Option(value="-n Serve all nodes from one thread with non-blocking sockets", aliases={"-nio"})
+	public static boolean nio = false;
 	// end option group "Execution Options"
 
 
@@ -233,8 +317,12 @@ public class Router {
 		}
 
 		try {
-			router = new Router(localPort);
-			router.start();
+			if (nio) {
+				new SelectorRouter(localPort).start();
+			} else {
+				router = new Router(localPort);
+				router.start();
+			}
 		}catch(IOException e) {
 			System.err.println("Invalid port given to Router. Exception: " + e);
 		}catch(Exception e) {
@@ -280,6 +368,7 @@ class NodeContainer {
 		for (Packet pkt : downQueue) {
 			send(pkt);
 		}
+		flush();
 	}
 
 	synchronized boolean isUp() {
@@ -294,9 +383,18 @@ class NodeContainer {
 	}
 
 	synchronized void send(Packet p) {
+		send(p, null);
+	}
+
+	/**
+	 * @param header
+	 *            The header of p, shared with the other destinations of the
+	 *            same packet, or null
+	 */
+	synchronized void send(Packet p, ByteBuffer header) {
 		if (up) {
 			System.out.println("Sending: " + p);
-			if (!node.send(p)) {
+			if (!node.send(p, header)) {
 				System.out.println("Failed to send because node is going down.  Queueing: " + p);
 				downQueue.add(p);
 			}
@@ -305,4 +403,10 @@ class NodeContainer {
 			downQueue.add(p);
 		}
 	}
+
+	synchronized void flush() {
+		if (up) {
+			node.flush();
+		}
+	}
 }
@@ -0,0 +1,457 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
+
+/**
+ * <pre>
+ * Router engine that serves every emulated node from one thread, instead of
+ * a thread per node doing blocking reads and writes (see Router and
+ * EmulatedNode). Start it with the Router's -n option.
+ *
+ * All sockets are non-blocking and driven by a single Selector. Packets to a
+ * node go onto that node's write queue, and the queue is drained whenever the
+ * socket can take more, with OP_WRITE set while it cannot. A node that reads
+ * slowly only makes its own queue grow; a broadcast is queued to every other
+ * node without waiting on any of them, and a multicast to every member of its
+ * group; either is encoded once and the same header bytes are queued to all
+ * destinations. Queued packets go out in gathering writes of many packets at
+ * once.
+ *
+ * The protocol with the nodes is the same as the Router's, including the
+ * two-FIN termination protocol and the queueing of packets for nodes that
+ * are down until they rejoin.
+ * </pre>
+ */
+public class SelectorRouter {
+    // how many buffers at most go into one gathering write
+    private static final int MAX_GATHER = 64;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private ServerSocketChannel server;
+    private Selector selector;
+
+    // one slot per virtual address, null until the address is first used
+    private Slot[] slots;
+
+    // multicast group -> addresses of its members, who stay members while
+    // they are down
+    private Map<Integer, Set<Integer>> groups;
+
+    // connections with packets queued since their last flush
+    private List<Connection> dirty;
+
+    /**
+     * The state of one virtual address: the connection of the node that has
+     * it, if it is up, and the packets waiting for it while it is down.
+     */
+    private static class Slot {
+        Connection conn;
+        List<Packet> downQueue = new LinkedList<Packet>();
+        // whether a node has ever had the address, so it gets broadcasts
+        boolean joined;
+    }
+
+    private enum State {
+        // waiting for the node to send its address
+        JOINING,
+        OPEN,
+        // we got the node's FIN and sent ours. The node is sending back the
+        // packets it did not process, up to a second FIN.
+        CLOSING,
+        CLOSED
+    }
+
+    /**
+     * One socket to a node.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final InetAddress ipAddress;
+        final int port;
+        int addr;
+        State state;
+
+        // bytes received but not decoded yet, in write mode
+        ByteBuffer readBuffer;
+
+        // buffers to write, in order: a header then its payload, per packet
+        final LinkedList<ByteBuffer> writeQueue;
+        boolean isDirty;
+        // shut the output down once the queue has drained
+        boolean shutdownAfterFlush;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            Socket socket = channel.socket();
+            ipAddress = socket.getInetAddress();
+            port = socket.getPort();
+            addr = -1;
+            state = State.JOINING;
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            writeQueue = new LinkedList<ByteBuffer>();
+            isDirty = false;
+            shutdownAfterFlush = false;
+            channel.configureBlocking(false);
+            socket.setTcpNoDelay(true);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * Queue a packet to the node. The header is shared with the other
+         * destinations of the same packet.
+         */
+        void enqueue(ByteBuffer header, Packet pkt) {
+            writeQueue.add(header.duplicate());
+            writeQueue.add(ByteBuffer.wrap(pkt.getPayload()));
+            if (!isDirty) {
+                isDirty = true;
+                dirty.add(this);
+            }
+        }
+
+        /**
+         * Write as much of the queue as the socket takes without blocking.
+         */
+        void flush() {
+            isDirty = false;
+            if (state == State.CLOSED) {
+                return;
+            }
+            try {
+                ByteBuffer[] gather = new ByteBuffer[Math.min(writeQueue.size(), MAX_GATHER)];
+                while (!writeQueue.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buf : writeQueue) {
+                        if (count == gather.length) {
+                            break;
+                        }
+                        gather[count++] = buf;
+                    }
+                    if (channel.write(gather, 0, count) == 0 && gather[0].hasRemaining()) {
+                        break;
+                    }
+                    while (!writeQueue.isEmpty() && !writeQueue.getFirst().hasRemaining()) {
+                        writeQueue.removeFirst();
+                    }
+                }
+                if (writeQueue.isEmpty()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    if (shutdownAfterFlush) {
+                        shutdownAfterFlush = false;
+                        channel.socket().shutdownOutput();
+                    }
+                } else {
+                    // the socket is full; carry on when it has room again
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                System.err.println("Error while writing to node " + addr + ": " + e);
+                fail(this);
+            }
+        }
+
+        public String toString() {
+            return "<TCP: " + ipAddress + ":" + port + " Fish: " + addr + ">";
+        }
+    }
+
+    /**
+     * Construct a new SelectorRouter
+     *
+     * @param port
+     *            The port to listen on. This must be a valid port (>1024)
+     * @throws IOException
+     *             If there is an error creating the socket server
+     */
+    public SelectorRouter(int port) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        slots = new Slot[Manager.MAX_ADDRESS + 1];
+        groups = new HashMap<Integer, Set<Integer>>();
+        dirty = new ArrayList<Connection>();
+    }
+
+    /**
+     * Start up the router. It serves every node from this thread and never
+     * returns.
+     */
+    public void start() {
+        System.out.println("Router awaiting nodes...");
+
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection conn = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    read(conn);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    conn.flush();
+                }
+            }
+
+            // everything queued this round goes out together
+            while (!dirty.isEmpty()) {
+                List<Connection> toFlush = dirty;
+                dirty = new ArrayList<Connection>();
+                for (Connection conn : toFlush) {
+                    conn.flush();
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            int port = channel.socket().getPort();
+            if (port < 1024) {
+                System.err.println("Router: Shouldn't happen! Illegal port: " + port);
+                channel.close();
+                return;
+            }
+            new Connection(channel);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read what the node has sent and handle every whole packet in it.
+     */
+    private void read(Connection conn) {
+        try {
+            int n = conn.channel.read(conn.readBuffer);
+            if (n < 0) {
+                // The other side closed the connection
+                fail(conn);
+                return;
+            }
+
+            ByteBuffer buf = conn.readBuffer;
+            buf.flip();
+            if (conn.state == State.JOINING) {
+                if (!buf.hasRemaining()) {
+                    buf.compact();
+                    return;
+                }
+                join(conn, buf.get() & 0xFF);
+            }
+
+            Packet packet;
+            while (conn.state != State.CLOSED && (packet = PacketCodec.decode(buf)) != null) {
+                handle(conn, packet);
+            }
+            if (conn.state == State.CLOSED) {
+                return;
+            }
+
+            // make room for a packet that does not fit yet
+            int length = PacketCodec.frameLength(buf);
+            if (length > buf.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(length);
+                bigger.put(buf);
+                conn.readBuffer = bigger;
+            } else if (length < 0 && buf.capacity() > READ_BUFFER_SIZE && buf.remaining() <= READ_BUFFER_SIZE) {
+                // done with the big packet, go back to the usual size
+                ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                smaller.put(buf);
+                conn.readBuffer = smaller;
+            } else {
+                buf.compact();
+            }
+        } catch (CorruptPacketException e) {
+            System.err.println("Corrupted packet from node " + conn.addr + ".  Cannot recover from misalignment.");
+            fail(conn);
+        } catch (IOException e) {
+            System.err.println("Error while reading from node " + conn.addr + ": " + e);
+            fail(conn);
+        }
+    }
+
+    /**
+     * Give a connection the address it asked for, and send it whatever was
+     * queued for the address while no node had it.
+     */
+    private void join(Connection conn, int address) {
+        // a new connection from the address and port of an old one means
+        // the old one is dead
+        for (Slot slot : slots) {
+            if (slot != null && slot.conn != null && slot.conn.state == State.OPEN
+                    && slot.conn.ipAddress.equals(conn.ipAddress) && slot.conn.port == conn.port) {
+                close(slot.conn);
+            }
+        }
+
+        System.out.println("Connecting to " + conn.ipAddress + ":" + conn.port + " with addr: " + address);
+        conn.addr = address;
+        conn.state = State.OPEN;
+        Slot slot = getSlot(address);
+        if (slot.conn != null) {
+            close(slot.conn);
+        }
+        slot.conn = conn;
+        slot.joined = true;
+
+        for (Packet pkt : slot.downQueue) {
+            conn.enqueue(PacketCodec.encodeHeader(pkt), pkt);
+        }
+        slot.downQueue.clear();
+    }
+
+    /**
+     * Route a packet that came in from a node.
+     */
+    private void handle(Connection conn, Packet packet) {
+        boolean fin = (packet.getFlags() & Packet.FIN) != 0;
+
+        if (conn.state == State.CLOSING) {
+            if (fin) {
+                // if we get the second FIN, everything is done
+                close(conn);
+            } else {
+                // an undelivered packet, to hand over when the node comes back
+                getSlot(conn.addr).downQueue.add(packet);
+            }
+            return;
+        }
+
+        if (fin) {
+            // start termination protocol: our FIN tells the node that no new
+            // packets will arrive
+            Packet ours = Packet.getFinPacket(conn.addr);
+            conn.enqueue(PacketCodec.encodeHeader(ours), ours);
+            conn.shutdownAfterFlush = true;
+            conn.state = State.CLOSING;
+            return;
+        }
+
+        int flags = packet.getFlags();
+        if ((flags & (Packet.JOIN_GROUP | Packet.LEAVE_GROUP)) != 0) {
+            Set<Integer> members = groups.get(packet.getDest());
+            if (members == null) {
+                members = new TreeSet<Integer>();
+                groups.put(packet.getDest(), members);
+            }
+            boolean join = (flags & Packet.JOIN_GROUP) != 0;
+            if (join) {
+                members.add(conn.addr);
+            } else {
+                members.remove(conn.addr);
+            }
+            System.out.println("Node " + conn.addr + (join ? " joined" : " left") + " group " + packet.getDest());
+            return;
+        }
+
+        ByteBuffer header = PacketCodec.encodeHeader(packet);
+        if (packet.isMulticast()) {
+            System.out.println("Multicasting: " + packet);
+            Set<Integer> members = groups.get(packet.getDest());
+            if (members != null) {
+                for (int dest : members) {
+                    if (dest != conn.addr) {
+                        deliver(getSlot(dest), header, packet);
+                    }
+                }
+            }
+        } else if (packet.getDest() == Manager.BROADCAST_ADDRESS) {
+            System.out.println("Broadcasting: " + packet);
+            for (int dest = 0; dest < slots.length; dest++) {
+                if (slots[dest] != null && slots[dest].joined && dest != conn.addr) {
+                    deliver(slots[dest], header, packet);
+                }
+            }
+        } else {
+            deliver(getSlot(packet.getDest()), header, packet);
+        }
+    }
+
+    private void deliver(Slot slot, ByteBuffer header, Packet packet) {
+        if (slot.conn != null && slot.conn.state == State.OPEN) {
+            slot.conn.enqueue(header, packet);
+        } else {
+            slot.downQueue.add(packet);
+        }
+    }
+
+    private Slot getSlot(int addr) {
+        Slot slot = slots[addr];
+        if (slot == null) {
+            slot = new Slot();
+            slots[addr] = slot;
+        }
+        return slot;
+    }
+
+    /**
+     * Drop a connection that broke, or one that did not finish the
+     * termination protocol. Packets still queued to it are lost, as with the
+     * Router.
+     */
+    private void fail(Connection conn) {
+        if (conn.state != State.CLOSED) {
+            System.out.println("Node " + conn + " quit");
+        }
+        close(conn);
+    }
+
+    /**
+     * Close a connection, leaving its address down.
+     */
+    private void close(Connection conn) {
+        if (conn.state == State.CLOSED) {
+            return;
+        }
+        conn.state = State.CLOSED;
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+        }
+        if (conn.addr >= 0 && slots[conn.addr] != null && slots[conn.addr].conn == conn) {
+            slots[conn.addr].conn = null;
+        }
+        conn.writeQueue.clear();
+    }
+}
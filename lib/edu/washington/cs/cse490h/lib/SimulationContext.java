@@ -0,0 +1,162 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Everything a simulation or emulation shares between the manager, its nodes
+ * and the static helpers in Utility: the RNG, the clock, the storage root, the
+ * replay streams and the synoptic loggers. Giving each manager its own context
+ * lets several of them run in the same JVM without seeing each other.
+ *
+ * A manager takes the context of the thread that constructs it, and binds that
+ * context to the thread that runs it, so that code that only has static access
+ * (Utility.getRNG() from a node, for example) finds it. Threads without a
+ * context of their own share a process-wide one, which keeps the layout of a
+ * single simulation per process: files under storage/.
+ */
+public class SimulationContext {
+    private static final String DEFAULT_STORAGE_ROOT = "storage";
+
+    private static final SimulationContext global = new SimulationContext(DEFAULT_STORAGE_ROOT);
+    private static final ThreadLocal<SimulationContext> bound = new ThreadLocal<SimulationContext>();
+
+    private Random rng;
+    // the RNG of the node a worker thread is running in a parallel step
+    private final ThreadLocal<Random> localRNG = new ThreadLocal<Random>();
+    private long time;
+    private final String storageRoot;
+    private final Replay replay;
+
+    // null when the log is not wanted
+    private String synopticTotalOrderLogFilename;
+    private String synopticPartialOrderLogFilename;
+    private final SynopticLogger synTotalOrderLogger;
+    private final SynopticLogger synPartialOrderLogger;
+
+    /**
+     * @param storageRoot
+     *            The directory the nodes' files are kept under, one
+     *            subdirectory per address
+     */
+    public SimulationContext(String storageRoot) {
+        this.storageRoot = storageRoot;
+        rng = new Random();
+        time = 0;
+        replay = new Replay();
+        synopticTotalOrderLogFilename = null;
+        synopticPartialOrderLogFilename = null;
+        synTotalOrderLogger = new SynopticLogger();
+        synPartialOrderLogger = new SynopticLogger();
+    }
+
+    /**
+     * @return The context bound to the current thread, or the process-wide one
+     */
+    public static SimulationContext current() {
+        SimulationContext context = bound.get();
+        return context != null ? context : global;
+    }
+
+    /**
+     * Make this the context of the current thread.
+     */
+    public void bind() {
+        if (this == global) {
+            bound.remove();
+        } else {
+            bound.set(this);
+        }
+    }
+
+    /**
+     * Make the current thread use the process-wide context again.
+     */
+    public static void unbind() {
+        bound.remove();
+    }
+
+    public Random getRNG() {
+        Random r = localRNG.get();
+        return r != null ? r : rng;
+    }
+
+    public void setRNG(Random r) {
+        rng = r;
+    }
+
+    /**
+     * Give the current thread an RNG of its own, which getRNG returns instead
+     * of the shared one.
+     *
+     * @param r
+     *            The RNG, or null to use the shared one again
+     */
+    void setLocalRNG(Random r) {
+        if (r == null) {
+            localRNG.remove();
+        } else {
+            localRNG.set(r);
+        }
+    }
+
+    /**
+     * @return The current time step
+     */
+    public long now() {
+        return time;
+    }
+
+    void setTime(long time) {
+        this.time = time;
+    }
+
+    public String getStorageRoot() {
+        return storageRoot;
+    }
+
+    String realFilename(int nodeAddr, String filename) {
+        return storageRoot + "/" + nodeAddr + "/" + filename;
+    }
+
+    void mkdirs(int nodeAddr) {
+        File f = new File(storageRoot + "/" + nodeAddr);
+        if (!f.exists()) {
+            f.mkdirs();
+        }
+    }
+
+    Replay getReplay() {
+        return replay;
+    }
+
+    /**
+     * Set where the synoptic logs go. They are opened when the manager
+     * starts.
+     *
+     * @param totalOrder
+     *            The totally ordered log file, or null for none
+     * @param partialOrder
+     *            The partially ordered log file, or null for none
+     */
+    public void setSynopticLogFilenames(String totalOrder, String partialOrder) {
+        synopticTotalOrderLogFilename = totalOrder;
+        synopticPartialOrderLogFilename = partialOrder;
+    }
+
+    String getSynopticTotalOrderLogFilename() {
+        return synopticTotalOrderLogFilename;
+    }
+
+    String getSynopticPartialOrderLogFilename() {
+        return synopticPartialOrderLogFilename;
+    }
+
+    SynopticLogger getTotalOrderLogger() {
+        return synTotalOrderLogger;
+    }
+
+    SynopticLogger getPartialOrderLogger() {
+        return synPartialOrderLogger;
+    }
+}
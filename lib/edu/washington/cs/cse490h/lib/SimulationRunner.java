@@ -0,0 +1,515 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import plume.Option;
+import plume.OptionGroup;
+import plume.Options;
+
+import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
+
+/**
+ * <pre>
+ *
+ * Runs many independent simulations of a command file in one JVM, in parallel:
+ * one per seed and combination of failure, recovery, drop and delay rates.
+ * Each simulation runs on a single thread of a ForkJoinPool with its own RNG,
+ * its own storage directory, and its own output and error logs, and stops
+ * without exiting the process. Failures are always generated by the RNG. As
+ * with MessageLayer, the node class can also be a Python module such as
+ * chitter_node.py.
+ *
+ * A simulation fails if it throws, writes anything to its error log (where
+ * nodes log their errors), or writes a line matching the failure pattern to
+ * its output log. The logs of failed simulations are kept under the output
+ * directory, as runN/output.log and runN/error.log.
+ *
+ * Usage: java SimulationRunner [options]
+ *
+ * General Options:
+ *  -h --help=<boolean>           - Print usage message [default false]
+ *
+ * Execution Options:
+ *  -n --nodeClass=<string>       - Node class to use [default ]
+ *  -c --commandFile=<string>     - Command file [default ]
+ *  -r --firstSeed=<long>         - First random seed [default 0]
+ *  -s --seeds=<int>              - Number of seeds [default 100]
+ *  --failureRates=<string>       - Comma-separated failure rates [default from the node class]
+ *  --recoveryRates=<string>      - Comma-separated recovery rates [default from the node class]
+ *  --dropRates=<string>          - Comma-separated drop rates [default from the node class]
+ *  --delayRates=<string>         - Comma-separated delay rates [default from the node class]
+ *  -j --threads=<int>            - Simulations to run at once [default number of processors]
+ *  -D --discreteEvent=<boolean>  - Jump from event to event [default false]
+ *
+ * Output Options:
+ *  -o --outputDir=<string>       - Directory for the logs [default sweep]
+ *  --failurePattern=<string>     - Regex for output lines that mean failure [default FAILED]
+ *  -k --keepLogs=<boolean>       - Keep the logs of passing simulations too [default false]
+ *
+ * </pre>
+ */
+public class SimulationRunner {
+
+	////////////////////////////////////////////////////
+	/**
+	 * Print the usage message.
+	 */
+	@OptionGroup("General Options")
+	@Option(value="-h Print usage message", aliases={"-help"})
+	public static boolean help = false;
+	// end option group "General Options"
+
+
+	////////////////////////////////////////////////////
+	/**
+	 * Node class to simulate
+	 */
+	@OptionGroup("Execution Options")
+	@Option(value="-n Node class to use", aliases={"-node-cls"})
+	public static String nodeClass = "";
+
+	/**
+	 * Command file
+	 */
+	@Option(value="-c Command file", aliases={"-command-file"})
+	public static String commandFile = "";
+
+	/**
+	 * First seed of the sweep
+	 */
+	@Option(value="-r First random seed", aliases={"-first-seed"})
+	public static long firstSeed = 0;
+
+	/**
+	 * Number of seeds in the sweep
+	 */
+	@Option(value="-s Number of seeds")
+	public static int seeds = 100;
+
+	/**
+	 * Failure rates to sweep
+	 */
+	@Option(value="Comma-separated failure rates", aliases={"-failure-rates"})
+	public static String failureRates = "";
+
+	/**
+	 * Recovery rates to sweep
+	 */
+	@Option(value="Comma-separated recovery rates", aliases={"-recovery-rates"})
+	public static String recoveryRates = "";
+
+	/**
+	 * Drop rates to sweep
+	 */
+	@Option(value="Comma-separated drop rates", aliases={"-drop-rates"})
+	public static String dropRates = "";
+
+	/**
+	 * Delay rates to sweep
+	 */
+	@Option(value="Comma-separated delay rates", aliases={"-delay-rates"})
+	public static String delayRates = "";
+
+	/**
+	 * Number of simulations to run at once
+	 */
+	@Option(value="-j Simulations to run at once")
+	public static int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Whether to skip time steps in which nothing happens
+	 */
+	@Option(value="-D Jump from event to event", aliases={"-discrete-event"})
+	public static boolean discreteEvent = false;
+	// end option group "Execution Options"
+
+
+	////////////////////////////////////////////////////
+	/**
+	 * Directory the logs are written to
+	 */
+	@OptionGroup("Output Options")
+	@Option(value="-o Directory for the logs", aliases={"-output-dir"})
+	public static String outputDir = "sweep";
+
+	/**
+	 * Output lines that mean a simulation failed
+	 */
+	@Option(value="Regex for output lines that mean failure", aliases={"-failure-pattern"})
+	public static String failurePattern = "FAILED";
+
+	/**
+	 * Whether to keep the logs of simulations that passed
+	 */
+	@Option(value="-k Keep the logs of passing simulations too", aliases={"-keep-logs"})
+	public static boolean keepLogs = false;
+	// end option group "Output Options"
+
+
+	/** One line synopsis of usage */
+	private static String usage_string
+	= "java SimulationRunner [options]";
+
+	/**
+	 * One simulation of the sweep.
+	 */
+	static class Run {
+		final int index;
+		final long seed;
+		final double failureRate;
+		final double recoveryRate;
+		final double dropRate;
+		final double delayRate;
+
+		Run(int index, long seed, double failureRate, double recoveryRate,
+				double dropRate, double delayRate) {
+			this.index = index;
+			this.seed = seed;
+			this.failureRate = failureRate;
+			this.recoveryRate = recoveryRate;
+			this.dropRate = dropRate;
+			this.delayRate = delayRate;
+		}
+
+		String name() {
+			return "run" + index;
+		}
+	}
+
+	/**
+	 * What happened in one simulation.
+	 */
+	static class Result {
+		final Run run;
+		int packetsSent;
+		long steps;
+		long millis;
+		// output lines matching the failure pattern
+		int failures;
+		// lines in the error log
+		int errors;
+		String firstFailure;
+		Throwable thrown;
+
+		Result(Run run) {
+			this.run = run;
+		}
+
+		boolean failed() {
+			return thrown != null || failures > 0 || errors > 0;
+		}
+	}
+
+	private static Class<? extends Node> nodeImpl;
+	private static File outDir;
+	private static Pattern failureRegex;
+	private static ThreadOutputStream threadOut;
+	private static ThreadOutputStream threadErr;
+
+	/**
+	 * Prints out an error message
+	 *
+	 * @param msg error msg string
+	 */
+	public static void printError(String msg) {
+		System.err.println("Error: " + msg);
+	}
+
+	/**
+	 * Entry point to start a sweep
+	 */
+	public static void main(String[] args) {
+		// this directly sets the static member options of the Main class
+		Options options = new Options (usage_string, SimulationRunner.class);
+
+		@SuppressWarnings("unused")
+		String[] cmdLineArgs = options.parse_or_usage(args);
+
+		if (help) {
+			options.print_usage();
+			return;
+		}
+
+		if (nodeClass.equals("")) {
+			printError("you must specify a node class with -n.");
+			return;
+		}
+
+		if (commandFile.equals("")) {
+			printError("you must specify a command file with -c.");
+			return;
+		}
+
+		if (seeds < 1 || threads < 1) {
+			printError("the number of seeds and threads must be positive.");
+			return;
+		}
+
+		List<Result> results;
+		try {
+			nodeImpl = MessageLayer.loadNodeClass(nodeClass);
+			results = sweep(buildRuns());
+		} catch (Exception e) {
+			printError("Exception occured in SimulationRunner!! Exception: " + e);
+			e.printStackTrace();
+			System.exit(2);
+			return;
+		}
+
+		System.exit(report(results) > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Every combination of seed and rates, seeds varying fastest.
+	 */
+	private static List<Run> buildRuns() throws Exception {
+		double[] failure = parseRates(failureRates, "getFailureRate");
+		double[] recovery = parseRates(recoveryRates, "getRecoveryRate");
+		double[] drop = parseRates(dropRates, "getDropRate");
+		double[] delay = parseRates(delayRates, "getDelayRate");
+
+		List<Run> runs = new ArrayList<Run>();
+		for (double f : failure) {
+			for (double r : recovery) {
+				for (double dr : drop) {
+					for (double de : delay) {
+						for (int i = 0; i < seeds; i++) {
+							runs.add(new Run(runs.size(), firstSeed + i, f, r, dr, de));
+						}
+					}
+				}
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Parse a list of rates, or get the node class's rate if the list is
+	 * empty.
+	 */
+	private static double[] parseRates(String list, String getter) throws Exception {
+		if (list.trim().equals("")) {
+			return new double[] { (Double) nodeImpl.getMethod(getter,
+					(Class<?>[]) null).invoke(null, (Object[]) null) };
+		}
+		String[] parts = list.split(",");
+		double[] rates = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			rates[i] = Double.parseDouble(parts[i].trim());
+			if (rates[i] < 0 || rates[i] > 1) {
+				throw new IllegalArgumentException("Rate out of range: " + parts[i]);
+			}
+		}
+		return rates;
+	}
+
+	/**
+	 * Run all the simulations on a pool of threads, and wait for them to
+	 * finish. Their output goes to their logs while they run.
+	 *
+	 * @param runs
+	 *            The simulations to run
+	 * @return What happened in each, in the same order
+	 */
+	static List<Result> sweep(List<Run> runs) throws InterruptedException {
+		outDir = new File(outputDir);
+		failureRegex = Pattern.compile(failurePattern);
+
+		threadOut = ThreadOutputStream.out();
+		threadErr = ThreadOutputStream.err();
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+		for (final Run run : runs) {
+			tasks.add(new Callable<Result>() {
+				public Result call() {
+					return simulate(run);
+				}
+			});
+		}
+
+		long start = System.currentTimeMillis();
+		List<Result> results = new ArrayList<Result>();
+		try {
+			for (Future<Result> f : pool.invokeAll(tasks)) {
+				try {
+					results.add(f.get());
+				} catch (ExecutionException e) {
+					// simulate catches everything
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		System.out.println("Ran " + runs.size() + " simulations on " + threads
+				+ " threads in " + (System.currentTimeMillis() - start) + " ms");
+		return results;
+	}
+
+	/**
+	 * Run one simulation on the current thread.
+	 */
+	private static Result simulate(Run run) {
+		Result result = new Result(run);
+		File dir = new File(outDir, run.name());
+		File outLog = new File(dir, "output.log");
+		File errLog = new File(dir, "error.log");
+		deleteRecursively(dir);
+		dir.mkdirs();
+
+		long start = System.currentTimeMillis();
+		OutputStream out = null;
+		OutputStream err = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(outLog));
+			err = new BufferedOutputStream(new FileOutputStream(errLog));
+			threadOut.bind(out);
+			threadErr.bind(err);
+			// the simulation takes the context of the thread it is created on,
+			// which has no synoptic logs
+			new SimulationContext(new File(dir, "storage").getPath()).bind();
+
+			Simulator sim = new Simulator(nodeImpl, FailureLvl.NOTHING, run.seed, "", "", commandFile);
+			sim.setExitOnStop(false);
+			sim.setRates(run.failureRate, run.recoveryRate, run.dropRate, run.delayRate);
+			sim.setDiscreteEvent(discreteEvent);
+			try {
+				sim.start();
+			} catch (Manager.StopException e) {
+				// the simulation is over
+			}
+			result.packetsSent = sim.getPacketsSent();
+			result.steps = sim.now();
+		} catch (Throwable t) {
+			result.thrown = t;
+			t.printStackTrace();
+		} finally {
+			SimulationContext.unbind();
+			threadOut.unbind();
+			threadErr.unbind();
+			close(out);
+			close(err);
+		}
+		result.millis = System.currentTimeMillis() - start;
+
+		try {
+			scan(outLog, result, true);
+			scan(errLog, result, false);
+		} catch (IOException e) {
+			result.thrown = e;
+		}
+
+		if (!result.failed() && !keepLogs) {
+			deleteRecursively(dir);
+		}
+		return result;
+	}
+
+	/**
+	 * Count the failure lines in a log: the lines matching the failure
+	 * pattern in an output log, or every line in an error log.
+	 */
+	private static void scan(File log, Result result, boolean output) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(log));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (output && !failureRegex.matcher(line).find()) {
+					continue;
+				}
+				if (output) {
+					result.failures++;
+				} else {
+					result.errors++;
+				}
+				if (result.firstFailure == null) {
+					result.firstFailure = line;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Print a line for each simulation and the totals.
+	 *
+	 * @return The number of simulations that failed
+	 */
+	static int report(List<Result> results) {
+		int failed = 0;
+		long packets = 0;
+		long steps = 0;
+		long millis = 0;
+		long maxMillis = 0;
+
+		System.out.println("run\tseed\tfailure\trecovery\tdrop\tdelay\tpackets\tsteps\tms\tfailures\terrors");
+		for (Result r : results) {
+			Run run = r.run;
+			System.out.println(run.name() + "\t" + run.seed + "\t" + run.failureRate
+					+ "\t" + run.recoveryRate + "\t" + run.dropRate + "\t"
+					+ run.delayRate + "\t" + r.packetsSent + "\t" + r.steps + "\t"
+					+ r.millis + "\t" + r.failures + "\t" + r.errors);
+			if (r.thrown != null) {
+				System.out.println("\tthrew " + r.thrown);
+			} else if (r.firstFailure != null) {
+				System.out.println("\tfirst failure: " + r.firstFailure);
+			}
+
+			if (r.failed()) {
+				failed++;
+			}
+			packets += r.packetsSent;
+			steps += r.steps;
+			millis += r.millis;
+			maxMillis = Math.max(maxMillis, r.millis);
+		}
+
+		int n = Math.max(1, results.size());
+		System.out.println("Simulations: " + results.size() + ", failed: " + failed);
+		System.out.println("Packets sent: " + packets + " total, " + (packets / n) + " per simulation");
+		System.out.println("Time steps: " + steps + " total, " + (steps / n) + " per simulation");
+		System.out.println("Simulation time: " + millis + " ms total, " + (millis / n)
+				+ " ms per simulation, " + maxMillis + " ms at most");
+		if (failed > 0) {
+			System.out.println("Logs of the failed simulations are in " + outDir);
+		}
+		return failed;
+	}
+
+	private static void close(OutputStream out) {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			printError("Could not close a log: " + e);
+		}
+	}
+
+	private static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		f.delete();
+	}
+}
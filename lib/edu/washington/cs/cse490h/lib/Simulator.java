@@ -1,5 +1,6 @@
 package edu.washington.cs.cse490h.lib;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
@@ -9,6 +10,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 // jython stuff
 import org.python.core.Py;
@@ -34,10 +38,94 @@ public class Simulator extends Manager {
     // event in the simulated system.
     private int globalLogicalTime = 0;
 
-    private final SynopticLogger synTotalOrderLogger = new SynopticLogger();
+    private final SynopticLogger synTotalOrderLogger;
 
     private HashSet<Timeout> currentTimeouts;
 
+    // jump from event to event instead of going through every time step
+    private boolean discreteEvent;
+    private EventCalendar calendar;
+    // Maps: crashed node addr -> token of its latest crash, so that a random
+    // restart drawn for an earlier crash does not apply
+    private HashMap<Integer, Object> crashTokens;
+
+    // runs the events of each node in a step on a thread of its own, or null
+    // to run all of them on this thread
+    private ForkJoinPool workers;
+    // the event a worker thread is running. Its changes to shared state wait
+    // in it until the step is merged.
+    private final ThreadLocal<EventRun> runningEvent = new ThreadLocal<EventRun>();
+
+    /**
+     * One event of a parallel step, with what running it did.
+     */
+    private static class EventRun {
+        final Event ev;
+        // the node's events this one runs with, or null if it runs in the merge
+        NodeRun run;
+        boolean done;
+        // changes to shared state, in the order they were made
+        final ArrayList<Runnable> effects;
+        final ByteArrayOutputStream out;
+        final ByteArrayOutputStream err;
+        Throwable thrown;
+
+        EventRun(Event ev) {
+            this.ev = ev;
+            run = null;
+            done = false;
+            effects = new ArrayList<Runnable>();
+            out = new ByteArrayOutputStream();
+            err = new ByteArrayOutputStream();
+            thrown = null;
+        }
+    }
+
+    /**
+     * The events of one node in a parallel step, run in order on a worker
+     * thread with an RNG of the node's own.
+     */
+    private class NodeRun implements Callable<Void> {
+        final ArrayList<EventRun> events = new ArrayList<EventRun>();
+        long seed;
+        // once the node crashes, its other events run in the merge
+        boolean crashed = false;
+
+        public Void call() {
+            ThreadOutputStream out = ThreadOutputStream.out();
+            ThreadOutputStream err = ThreadOutputStream.err();
+            context.bind();
+            context.setLocalRNG(new Random(seed));
+            try {
+                for (EventRun er : events) {
+                    if (crashed) {
+                        break;
+                    }
+                    runningEvent.set(er);
+                    out.bind(er.out);
+                    err.bind(er.err);
+                    try {
+                        handleEvent(er.ev);
+                    } catch (Throwable t) {
+                        er.thrown = t;
+                    } finally {
+                        out.unbind();
+                        err.unbind();
+                        runningEvent.remove();
+                    }
+                    er.done = true;
+                    if (er.thrown != null) {
+                        break;
+                    }
+                }
+            } finally {
+                context.setLocalRNG(null);
+                SimulationContext.unbind();
+            }
+            return null;
+        }
+    }
+
     /**
      * Base constructor for the Simulator. Does most of the work, but the
      * command input method and failure level should be set before calling this
@@ -63,14 +151,20 @@ public class Simulator extends Manager {
         super(nodeImpl, seed, replayOutputFilename, replayInputFilename);
 
         setParser(new SimulationCommandsParser());
+        synTotalOrderLogger = context.getTotalOrderLogger();
 
         System.out.println("Starting simulation with seed: " + this.seed);
-        Utility.randNumGen = new Random(this.seed);
+        context.setRNG(new Random(this.seed));
 
         nodes = new HashMap<Integer, Node>();
         vtimes = new HashMap<Integer, VectorTime>();
         crashedNodes = new HashSet<Integer>();
 
+        discreteEvent = false;
+        calendar = null;
+        crashTokens = new HashMap<Integer, Object>();
+        workers = null;
+
         setTime(0);
         // NOTE: cannot produce a TIMESTEP event here as the nodes haven't
         // been created yet and we must associate TIMESTEP events with nodes
@@ -145,16 +239,103 @@ public class Simulator extends Manager {
         userControl = failureGen;
     }
 
+    /**
+     * Run the simulation as a discrete-event simulation: every future
+     * delivery, timeout, command and random crash or restart is kept in one
+     * calendar ordered by time, and the simulator jumps straight from one
+     * event time to the next. Time steps in which nothing happens cost
+     * nothing and are not printed.
+     *
+     * Whether a packet is dropped or delayed, and when a node crashes or
+     * restarts, is drawn up front from the same distributions as the step by
+     * step checks, and events in the same step still happen in a random
+     * order. A run is deterministic for a given seed, but it is not the same
+     * run as a step by step simulation with that seed.
+     *
+     * This only works with a command file and failures generated by the RNG.
+     *
+     * @param discreteEvent
+     *            Whether to run as a discrete-event simulation
+     * @throws IllegalArgumentException
+     *             If the simulator is not set up for it
+     */
+    protected void setDiscreteEvent(boolean discreteEvent) throws IllegalArgumentException {
+        if (discreteEvent) {
+            if (cmdInputType != InputType.FILE) {
+                throw new IllegalArgumentException("Discrete-event simulation needs a command file");
+            }
+            if (userControl != FailureLvl.NOTHING) {
+                throw new IllegalArgumentException("Discrete-event simulation needs failure level 0");
+            }
+            if (dropRate + delayRate >= 1) {
+                throw new IllegalArgumentException("Discrete-event simulation needs drop rate + delay rate < 1");
+            }
+            calendar = new EventCalendar(context.getRNG());
+        } else {
+            calendar = null;
+        }
+        this.discreteEvent = discreteEvent;
+    }
+
+    /**
+     * Run the events of each time step on worker threads, each node's events
+     * in order on one thread, as deliveries, timeouts and commands for
+     * different nodes only touch their own node. What the events do to the
+     * simulator (sending packets, setting timeouts, crashing, logging) and
+     * what they print is kept per event and applied in the shuffled order
+     * once all the nodes are done, so it comes out as if the events had run
+     * one after the other. Events of a node after it is started or failed in
+     * the same step, and steps with an exit, run on this thread.
+     *
+     * Each node draws from an RNG of its own in a parallel step, seeded from
+     * the simulation's seed, the step and its address. A run is deterministic
+     * for a given seed whatever the number of threads, and if the nodes do not
+     * draw random numbers themselves it is the same run as a serial
+     * simulation with that seed. Nodes must not share mutable state except
+     * through the simulator.
+     *
+     * This only works with failures generated by the RNG, and not with a
+     * discrete-event simulation.
+     *
+     * @param threads
+     *            How many worker threads to use, or 0 to run every event on
+     *            the simulator's thread
+     * @throws IllegalArgumentException
+     *             If the simulator is not set up for it
+     */
+    protected void setParallelism(int threads) throws IllegalArgumentException {
+        if (workers != null) {
+            workers.shutdown();
+            workers = null;
+        }
+        if (threads > 0) {
+            if (userControl != FailureLvl.NOTHING) {
+                throw new IllegalArgumentException("Parallel simulation needs failure level 0");
+            }
+            if (discreteEvent) {
+                throw new IllegalArgumentException("Parallel simulation does not work with discrete-event simulation");
+            }
+            // what the events print is kept per event
+            ThreadOutputStream.out();
+            ThreadOutputStream.err();
+            workers = new ForkJoinPool(threads);
+        }
+    }
+
     /********** Methods for starting and stopping the simulation **********/
 
     @Override
     protected void start() {
+        context.bind();
+
         // start the synoptic loggers
-        synTotalOrderLogger.start(MessageLayer.synopticTotalOrderLogFilename);
+        synTotalOrderLogger.start(context.getSynopticTotalOrderLogFilename());
         synPartialOrderLogger
-                .start(MessageLayer.synopticPartialOrderLogFilename);
+                .start(context.getSynopticPartialOrderLogFilename());
 
-        if (cmdInputType == InputType.FILE) {
+        if (cmdInputType == InputType.FILE && discreteEvent) {
+            runCalendar();
+        } else if (cmdInputType == InputType.FILE) {
             while (!inTransitMsgs.isEmpty() || !sortedEvents.isEmpty()
                     || !waitingTOs.isEmpty()) {
                 System.out.println("\nTime: " + now());
@@ -195,7 +376,7 @@ public class Simulator extends Manager {
 
                     try {
                         // Process user input if there is any
-                        String input = Replay.getLine();
+                        String input = replay.getLine();
 
                         if (input != null) {
                             // A command will be converted into an Event.
@@ -259,7 +440,7 @@ public class Simulator extends Manager {
 
                 // Process user input if there is any
                 // TODO integrate Console and Replay somehow
-                // String input = Replay.getLine();
+                // String input = replay.getLine();
                 String input = console.readLine();
 
                 if (input != null) {
@@ -297,6 +478,74 @@ public class Simulator extends Manager {
         logSimulatorEvent("TIMESTEP time:" + now());
     }
 
+    /**
+     * Run a discrete-event simulation until there is nothing left to do. See
+     * setDiscreteEvent.
+     */
+    private void runCalendar() {
+        // commands happen in the step they are listed in
+        long step = 0;
+        for (Event ev : sortedEvents) {
+            if (ev.t == Event.EventType.TIME) {
+                step++;
+            } else {
+                calendar.schedule(step, ev);
+            }
+        }
+        sortedEvents.clear();
+
+        ArrayList<EventCalendar.Entry> entries = new ArrayList<EventCalendar.Entry>();
+        while (calendar.hasWork()) {
+            setTime(calendar.nextTime());
+            System.out.println("\nTime: " + now());
+
+            entries.clear();
+            calendar.takeAll(now(), entries);
+            currentTimeouts = new HashSet<Timeout>();
+            for (EventCalendar.Entry entry : entries) {
+                if (entry.ev.t == Event.EventType.TIMEOUT) {
+                    currentTimeouts.add(entry.ev.to);
+                }
+            }
+
+            System.out.println("Executing with order: ");
+            for (EventCalendar.Entry entry : entries) {
+                if (entry.background && !stillApplies(entry)) {
+                    continue;
+                }
+                System.out.println(entry.ev.toString());
+                handleEvent(entry.ev);
+            }
+
+            setTime(now() + 1);
+            logSimulatorEvent("TIMESTEP time:" + now());
+        }
+    }
+
+    /**
+     * Check that a random crash or restart drawn earlier is still for the
+     * same life of the node.
+     */
+    private boolean stillApplies(EventCalendar.Entry entry) {
+        int addr = entry.ev.node;
+        if (entry.ev.t == Event.EventType.FAILURE) {
+            return nodes.get(addr) == entry.guard;
+        }
+        return crashedNodes.contains(addr) && crashTokens.get(addr) == entry.guard;
+    }
+
+    /**
+     * Draw how many steps pass until something with a given chance per step
+     * happens, counting the step it happens in.
+     */
+    private long stepsUntil(double rate) {
+        if (rate >= 1) {
+            return 1;
+        }
+        double rand = context.getRNG().nextDouble();
+        return 1 + (long) Math.floor(Math.log(1 - rand) / Math.log(1 - rate));
+    }
+
     @Override
     protected void stop() {
         System.out.println(stopString());
@@ -312,7 +561,10 @@ public class Simulator extends Manager {
         // stop the synoptic logger
         synTotalOrderLogger.stop();
         synPartialOrderLogger.stop();
-        System.exit(0);
+        if (workers != null) {
+            workers.shutdown();
+        }
+        exit();
     }
 
     /******************* Methods to fail or restart a node *******************/
@@ -358,6 +610,11 @@ public class Simulator extends Manager {
         } catch (NodeCrashException e) {
             failNode(newNode.addr);
         }
+
+        if (discreteEvent && failureRate > 0 && nodes.get(node) == newNode) {
+            calendar.scheduleBackground(now() + stepsUntil(failureRate),
+                    Event.getFailure(node), newNode);
+        }
     }
 
     /**
@@ -370,7 +627,23 @@ public class Simulator extends Manager {
      *         if the stack includes methods in Node, we can rethrow the
      *         Exception as necessary
      */
-    private NodeCrashException failNode(int node) {
+    private NodeCrashException failNode(final int node) {
+        EventRun er = deferring();
+        if (er != null) {
+            // a node can only crash itself while it runs on a worker. It is
+            // failed in the merge; until then it runs no more events.
+            if (er.run.crashed) {
+                return null;
+            }
+            er.run.crashed = true;
+            er.effects.add(new Runnable() {
+                public void run() {
+                    failNode(node);
+                }
+            });
+            return nodes.get(node).new NodeCrashException();
+        }
+
         NodeCrashException crash = null;
 
         if (isNodeValid(node)) {
@@ -386,14 +659,19 @@ public class Simulator extends Manager {
             nodes.remove(node);
             crashedNodes.add(node);
 
-            Iterator<Timeout> iter = waitingTOs.iterator();
-            while (iter.hasNext()) {
-                Timeout to = iter.next();
-                if (to.node.addr == node) {
-                	iter.remove();
+            if (discreteEvent) {
+                calendar.cancelAll(crashingNode);
+
+                Object token = new Object();
+                crashTokens.put(node, token);
+                if (recoveryRate > 0) {
+                    calendar.scheduleBackground(now() + stepsUntil(recoveryRate),
+                            Event.getStart(node), token);
                 }
+            } else {
+                waitingTOs.removeAll(crashingNode);
             }
-            iter = currentTimeouts.iterator();
+            Iterator<Timeout> iter = currentTimeouts.iterator();
             while (iter.hasNext()) {
                 Timeout to = iter.next();
                 if (to.node.addr == node) {
@@ -408,7 +686,7 @@ public class Simulator extends Manager {
     @Override
     protected void checkWriteCrash(Node n, String description) {
         if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-            if (Utility.getRNG().nextDouble() < failureRate) {
+            if (context.getRNG().nextDouble() < failureRate) {
                 System.out.println("Randomly failing before write: " + n.addr);
                 NodeCrashException e = failNode(n.addr);
                 // This function is called by Node, so we need to rethrow the
@@ -419,7 +697,7 @@ public class Simulator extends Manager {
             try {
                 System.out.println("Crash node " + n.addr + " before "
                         + description + "? (y/n)");
-                String input = Replay.getLine().trim();
+                String input = replay.getLine().trim();
                 if (input.length() != 0 && input.charAt(0) == 'y') {
                     NodeCrashException e = failNode(n.addr);
                     // This function is called by Node, so we need to rethrow
@@ -478,7 +756,7 @@ public class Simulator extends Manager {
             Iterator<Packet> iter = currentPackets.iterator();
             while (iter.hasNext()) {
                 Packet p = iter.next();
-                double rand = Utility.getRNG().nextDouble();
+                double rand = context.getRNG().nextDouble();
                 if (rand < dropRate) {
                     System.out.println("Randomly dropping: " + p.toString());
                     logInTransit(p, "DROP");
@@ -494,7 +772,7 @@ public class Simulator extends Manager {
             try {
                 System.out
                         .println("Which should be dropped? (space delimited list or just press enter to drop none)");
-                String input = Replay.getLine().trim();
+                String input = replay.getLine().trim();
                 // hash set so we don't have to deal with duplicates
                 HashSet<Packet> toBeRemoved = new HashSet<Packet>();
 
@@ -518,7 +796,7 @@ public class Simulator extends Manager {
                                                                     // >= DELAY
                     System.out
                             .println("Which should be delayed? (space delimited list or just press enter to delay none)");
-                    input = Replay.getLine().trim();
+                    input = replay.getLine().trim();
 
                     if (!input.equals("")) {
                         String[] delayList = input.split("\\s+");
@@ -547,7 +825,7 @@ public class Simulator extends Manager {
             Iterator<Packet> iter = currentPackets.iterator();
             while (iter.hasNext()) {
                 Packet p = iter.next();
-                double rand = Utility.getRNG().nextDouble();
+                double rand = context.getRNG().nextDouble();
                 // adjust the probability since these are not independent events
                 // Ex: 50% drop rate and 50% delay rate should mean that nothing
                 // gets through
@@ -580,7 +858,7 @@ public class Simulator extends Manager {
             Integer[] addrCopy = nodes.keySet().toArray(new Integer[0]);
 
             for (Integer i : addrCopy) {
-                double rand = Utility.getRNG().nextDouble();
+                double rand = context.getRNG().nextDouble();
                 if (rand < failureRate) {
                     currentRoundEvents.add(Event.getFailure(i));
                 }
@@ -588,7 +866,7 @@ public class Simulator extends Manager {
 
             addrCopy = crashedNodes.toArray(new Integer[0]);
             for (Integer i : addrCopy) {
-                double rand = Utility.getRNG().nextDouble();
+                double rand = context.getRNG().nextDouble();
                 if (rand < recoveryRate) {
                     currentRoundEvents.add(Event.getStart(i));
                 }
@@ -601,7 +879,7 @@ public class Simulator extends Manager {
                 if (!nodes.isEmpty()) {
                     System.out
                             .println("Crash which nodes? (space-delimited list of addresses or just press enter)");
-                    input = Replay.getLine().trim();
+                    input = replay.getLine().trim();
                     if (!input.equals("")) {
                         String[] crashList = input.split("\\s+");
                         for (String s : crashList) {
@@ -616,7 +894,7 @@ public class Simulator extends Manager {
                 if (!crashedNodes.isEmpty()) {
                     System.out
                             .println("Restart which nodes? (space-delimited list of addresses or just press enter)");
-                    input = Replay.getLine().trim();
+                    input = replay.getLine().trim();
                     if (!input.equals("")) {
                         String[] restartList = input.split("\\s+");
                         for (String s : restartList) {
@@ -641,14 +919,11 @@ public class Simulator extends Manager {
     private void checkTimeouts(ArrayList<Event> currentRoundEvents) {
     	currentTimeouts = new HashSet<Timeout>();
 
-        Iterator<Timeout> iter = waitingTOs.iterator();
-        while (iter.hasNext()) {
-            Timeout to = iter.next();
-            if (now() >= to.fireTime) {
-                iter.remove();
-                currentTimeouts.add(to);
-                currentRoundEvents.add(Event.getTimeout(to));
-            }
+        ArrayList<Timeout> expired = new ArrayList<Timeout>();
+        waitingTOs.expire(now(), expired);
+        for (Timeout to : expired) {
+            currentTimeouts.add(to);
+            currentRoundEvents.add(Event.getTimeout(to));
         }
     }
 
@@ -671,7 +946,7 @@ public class Simulator extends Manager {
                     }
                     System.out
                             .println("In what order should the events happen? (enter for in-order)");
-                    String input = Replay.getLine().trim();
+                    String input = replay.getLine().trim();
 
                     if (input.equals("")) {
                         // enter for in-order
@@ -706,10 +981,14 @@ public class Simulator extends Manager {
                 }
             } while (doAgain);
         } else {
-            Collections.shuffle(currentRoundEvents, Utility.getRNG());
+            Collections.shuffle(currentRoundEvents, context.getRNG());
             if (cmdInputType != InputType.CONSOLE) {
                 System.out.println("Executing with order: ");
             }
+            if (workers != null && !hasExit(currentRoundEvents)) {
+                executeInParallel(currentRoundEvents);
+                return;
+            }
             for (Event ev : currentRoundEvents) {
                 if (cmdInputType != InputType.CONSOLE) {
                     System.out.println(ev.toString());
@@ -719,6 +998,119 @@ public class Simulator extends Manager {
         }
     }
 
+    private static boolean hasExit(ArrayList<Event> events) {
+        for (Event ev : events) {
+            if (ev.t == Event.EventType.EXIT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run the events of a step on the worker threads, node by node, then
+     * merge what they did in the order of the events. See setParallelism.
+     *
+     * @param events
+     *            The events of the step, shuffled
+     */
+    private void executeInParallel(ArrayList<Event> events) {
+        ArrayList<EventRun> order = new ArrayList<EventRun>(events.size());
+        TreeMap<Integer, NodeRun> runs = new TreeMap<Integer, NodeRun>();
+        // nodes started or failed in this step. Their later events depend on
+        // that, so they run in the merge.
+        HashSet<Integer> restarted = new HashSet<Integer>();
+
+        for (Event ev : events) {
+            EventRun er = new EventRun(ev);
+            order.add(er);
+
+            int addr;
+            switch (ev.t) {
+            case DELIVERY:
+                addr = ev.p.getDest();
+                break;
+            case TIMEOUT:
+                addr = ev.to.node.addr;
+                break;
+            case COMMAND:
+                addr = ev.node;
+                break;
+            case FAILURE:
+            case START:
+                restarted.add(ev.node);
+                continue;
+            default:
+                continue;
+            }
+            if (restarted.contains(addr)) {
+                continue;
+            }
+
+            NodeRun run = runs.get(addr);
+            if (run == null) {
+                run = new NodeRun();
+                runs.put(addr, run);
+            }
+            run.events.add(er);
+            er.run = run;
+        }
+
+        for (Integer addr : runs.keySet()) {
+            runs.get(addr).seed = nodeSeed(addr);
+        }
+        if (!runs.isEmpty()) {
+            workers.invokeAll(runs.values());
+        }
+
+        for (EventRun er : order) {
+            if (cmdInputType != InputType.CONSOLE) {
+                System.out.println(er.ev.toString());
+            }
+            if (!er.done) {
+                handleEvent(er.ev);
+                continue;
+            }
+
+            byte[] printed = er.out.toByteArray();
+            System.out.write(printed, 0, printed.length);
+            printed = er.err.toByteArray();
+            System.err.write(printed, 0, printed.length);
+
+            for (Runnable effect : er.effects) {
+                effect.run();
+            }
+
+            if (er.thrown instanceof RuntimeException) {
+                throw (RuntimeException) er.thrown;
+            } else if (er.thrown instanceof Error) {
+                throw (Error) er.thrown;
+            } else if (er.thrown != null) {
+                throw new RuntimeException(er.thrown);
+            }
+        }
+    }
+
+    /**
+     * Seed for the RNG of a node in a parallel step, mixed from the seed of the
+     * simulation, the step and the address, so that drawing it does not
+     * change what the simulation's RNG draws next.
+     */
+    private long nodeSeed(int addr) {
+        long z = seed + 0x9E3779B97F4A7C15L * (now() * (MAX_ADDRESS + 1) + addr + 1);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return The event this thread is running in a parallel step, or null if
+     *         changes to shared state should be made right away
+     */
+    private EventRun deferring() {
+        return workers == null ? null : runningEvent.get();
+    }
+
     /**
      * Process an event.
      *
@@ -750,15 +1142,17 @@ public class Simulator extends Manager {
             deliverPkt(ev.p);
             break;
         case TIMEOUT:
-            if (!currentTimeouts.contains(ev.to)) {
+            if (!currentTimeouts.contains(ev.to) || ev.to.isCancelled()) {
                 break;
             }
 
             logEventWithNodeField(ev.to.node, "TIMEOUT fire-time:"
-                    + ev.to.fireTime + " " + ev.to.cb.toSynopticString());
+                    + ev.to.fireTime + " " + ev.to.toSynopticString());
 
             try {
-                ev.to.cb.invoke();
+                ev.to.invoke();
+            } catch (NodeCrashException e) {
+                failNode(ev.to.node.addr);
             } catch (InvocationTargetException e) {
                 Throwable t = e.getCause();
                 if (t == null) {
@@ -794,7 +1188,7 @@ public class Simulator extends Manager {
      *             If the send is invalid
      */
     @Override
-    protected void sendPkt(Node fromNode, int to, int protocol, byte[] payload)
+    protected void sendPkt(final Node fromNode, final int to, final int protocol, byte[] payload)
             throws IllegalArgumentException {
         int from = fromNode.addr;
         super.sendPkt(fromNode, to, protocol, payload); // check arguments
@@ -803,6 +1197,25 @@ public class Simulator extends Manager {
             return;
         }
 
+        EventRun er = deferring();
+        if (er != null) {
+            // the node may reuse the array once the call returns
+            final byte[] copy = payload.clone();
+            er.effects.add(new Runnable() {
+                public void run() {
+                    putOnChannel(fromNode, to, protocol, copy);
+                }
+            });
+            return;
+        }
+        putOnChannel(fromNode, to, protocol, payload);
+    }
+
+    /**
+     * Create the packets of a checked send and put them on the channel.
+     */
+    private void putOnChannel(Node fromNode, int to, int protocol, byte[] payload) {
+        int from = fromNode.addr;
         if (to == Manager.BROADCAST_ADDRESS) {
             // We create a new packet for each msg in the broadcast since
             // delivery in the simulator is based on the destination address of
@@ -813,19 +1226,176 @@ public class Simulator extends Manager {
                     Packet newPacket = new Packet(i, from, protocol, payload);
                     logEvent(fromNode,
                             "SEND " + newPacket.toSynopticString(fromNode));
-                    inTransitMsgs.add(newPacket);
+                    transmit(newPacket);
                 }
             }
             for (Integer i : crashedNodes) {
                 Packet newPacket = new Packet(i, from, protocol, payload);
                 logEvent(fromNode,
                         "SEND " + newPacket.toSynopticString(fromNode));
-                inTransitMsgs.add(newPacket);
+                transmit(newPacket);
             }
         } else {
             Packet newPacket = new Packet(to, from, protocol, payload);
             logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
-            inTransitMsgs.add(newPacket);
+            transmit(newPacket);
+        }
+    }
+
+    /**
+     * Create a packet for each member of a multicast group and put them on
+     * the channel, as for a broadcast.
+     *
+     * @param fromNode
+     *            The node that is sending the packet
+     * @param group
+     *            The multicast group
+     * @param protocol
+     *            The protocol of the message
+     * @param payload
+     *            The payload to be sent, serialized to a byte array
+     * @throws IllegalArgumentException
+     *             If the send is invalid
+     */
+    @Override
+    protected void multicastPkt(final Node fromNode, final int group, final int protocol, byte[] payload)
+            throws IllegalArgumentException {
+        int from = fromNode.addr;
+        super.multicastPkt(fromNode, group, protocol, payload); // check arguments
+
+        if (!isNodeValid(from)) {
+            return;
+        }
+
+        EventRun er = deferring();
+        if (er != null) {
+            final byte[] copy = payload.clone();
+            er.effects.add(new Runnable() {
+                public void run() {
+                    multicastOnChannel(fromNode, group, protocol, copy);
+                }
+            });
+            return;
+        }
+        multicastOnChannel(fromNode, group, protocol, payload);
+    }
+
+    /**
+     * Create the packets of a checked multicast and put them on the channel.
+     */
+    private void multicastOnChannel(Node fromNode, int group, int protocol, byte[] payload) {
+        int from = fromNode.addr;
+        if (!groups.containsKey(group)) {
+            return;
+        }
+
+        for (Integer i : groups.get(group)) {
+            if (i != from) {
+                Packet newPacket = new Packet(i, from, protocol, payload);
+                logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
+                transmit(newPacket);
+            }
+        }
+    }
+
+    /**
+     * Put a packet on the channel. In a discrete-event simulation, decide
+     * right away what checkInTransit would decide in each step the packet
+     * spends in transit, and schedule its delivery.
+     *
+     * @param p
+     *            The packet
+     */
+    private void transmit(Packet p) {
+        if (!discreteEvent) {
+            inTransitMsgs.add(p);
+            return;
+        }
+
+        long arrival = now() + 1;
+        double adjustedDelay = delayRate / (1 - dropRate);
+        while (true) {
+            if (context.getRNG().nextDouble() < dropRate) {
+                System.out.println("Randomly dropping: " + p.toString());
+                logInTransit(p, "DROP");
+                return;
+            }
+            if (context.getRNG().nextDouble() >= adjustedDelay) {
+                break;
+            }
+            System.out.println("Randomly Delaying: " + p.toString());
+            logInTransit(p, "DELAY");
+            arrival++;
+        }
+        calendar.schedule(arrival, Event.getDelivery(p));
+    }
+
+    @Override
+    protected void scheduleTimeout(final Timeout to) {
+        EventRun er = deferring();
+        if (er != null) {
+            er.effects.add(new Runnable() {
+                public void run() {
+                    scheduleTimeout(to);
+                }
+            });
+        } else if (discreteEvent) {
+            // like the timing wheel, a timeout for this step fires in the next
+            calendar.schedule(Math.max(to.fireTime, now() + 1), Event.getTimeout(to));
+        } else {
+            super.scheduleTimeout(to);
+        }
+    }
+
+    @Override
+    protected void removeTimeout(final Timeout to) {
+        EventRun er = deferring();
+        if (er != null) {
+            er.effects.add(new Runnable() {
+                public void run() {
+                    removeTimeout(to);
+                }
+            });
+        } else if (discreteEvent) {
+            calendar.cancel(to);
+        } else {
+            super.removeTimeout(to);
+        }
+    }
+
+    @Override
+    protected void joinGroup(final Node node, final int group) throws IllegalArgumentException {
+        EventRun er = deferring();
+        if (er != null) {
+            checkGroup(group);
+            er.effects.add(new Runnable() {
+                public void run() {
+                    joinGroup(node, group);
+                }
+            });
+        } else {
+            super.joinGroup(node, group);
+        }
+    }
+
+    @Override
+    protected void leaveGroup(final Node node, final int group) throws IllegalArgumentException {
+        EventRun er = deferring();
+        if (er != null) {
+            checkGroup(group);
+            er.effects.add(new Runnable() {
+                public void run() {
+                    leaveGroup(node, group);
+                }
+            });
+        } else {
+            super.leaveGroup(node, group);
+        }
+    }
+
+    private static void checkGroup(int group) throws IllegalArgumentException {
+        if (!isValidGroup(group)) {
+            throw new IllegalArgumentException("Invalid multicast group: " + group);
         }
     }
 
@@ -849,7 +1419,7 @@ public class Simulator extends Manager {
         }
 
         Node destNode = nodes.get(destAddr);
-        vtimes.get(destAddr).updateTo(vtimes.get(srcAddr));
+        mergeVectorTime(destAddr, srcAddr);
 
         logEvent(destNode, "RECVD " + pkt.toSynopticString(destNode));
 
@@ -860,6 +1430,22 @@ public class Simulator extends Manager {
         }
     }
 
+    /**
+     * Bring the vector time of a receiver up to that of the sender.
+     */
+    private void mergeVectorTime(final int destAddr, final int srcAddr) {
+        EventRun er = deferring();
+        if (er != null) {
+            er.effects.add(new Runnable() {
+                public void run() {
+                    mergeVectorTime(destAddr, srcAddr);
+                }
+            });
+            return;
+        }
+        vtimes.get(destAddr).updateTo(vtimes.get(srcAddr));
+    }
+
     /**
      * Sends command to the specified node
      *
@@ -980,7 +1566,17 @@ public class Simulator extends Manager {
      *            the event string description of the event
      */
     @Override
-    public void logEvent(Node node, String eventStr) {
+    public void logEvent(final Node node, final String eventStr) {
+        EventRun er = deferring();
+        if (er != null) {
+            er.effects.add(new Runnable() {
+                public void run() {
+                    logEvent(node, eventStr);
+                }
+            });
+            return;
+        }
+
         // The Simulator implicitly totally orders events (because it is single
         // threaded) so we also output a globally total order (in addition to
         // the partial order that is implemented in super).
@@ -83,4 +83,28 @@ public class SynopticLogger {
 		}
 	}
 
+	/**
+	 * Logs a single event to the synoptic log, writing the vector time
+	 * straight to the log instead of building its string first.
+	 *
+	 * @param vtime
+	 * @param eventString
+	 */
+	public void logEvent(VectorTime vtime, String eventStr) {
+		if (this.writer == null) {
+			return;
+		}
+
+		try {
+			vtime.writeTo(this.writer);
+			this.writer.write(' ');
+			this.writer.write(eventStr);
+			this.writer.write('\n');
+		} catch (IOException e) {
+			System.out.println("Warning: unable to write to the synoptic log.");
+			e.printStackTrace();
+			System.out.println("...continuing");
+		}
+	}
+
 }
@@ -0,0 +1,86 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Sends what is written to it to the stream bound to the writing thread, or
+ * to the original stream for threads that have none bound. Installed as
+ * System.out and System.err when output has to be kept apart per thread: per
+ * simulation in SimulationRunner, and per event while a parallel Simulator
+ * step runs.
+ */
+class ThreadOutputStream extends OutputStream {
+    private static ThreadOutputStream out = null;
+    private static ThreadOutputStream err = null;
+
+    private final OutputStream fallback;
+    private final ThreadLocal<OutputStream> sink = new ThreadLocal<OutputStream>();
+
+    private ThreadOutputStream(OutputStream fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * @return The stream installed as System.out, installing it if needed
+     */
+    static synchronized ThreadOutputStream out() {
+        if (out == null) {
+            out = new ThreadOutputStream(System.out);
+            System.setOut(new PrintStream(out, true));
+        }
+        return out;
+    }
+
+    /**
+     * @return The stream installed as System.err, installing it if needed
+     */
+    static synchronized ThreadOutputStream err() {
+        if (err == null) {
+            err = new ThreadOutputStream(System.err);
+            System.setErr(new PrintStream(err, true));
+        }
+        return err;
+    }
+
+    /**
+     * Send what the current thread writes to a stream of its own.
+     *
+     * @param stream
+     *            The stream
+     */
+    void bind(OutputStream stream) {
+        sink.set(stream);
+    }
+
+    /**
+     * Send what the current thread writes to the original stream again.
+     */
+    void unbind() {
+        sink.remove();
+    }
+
+    private OutputStream target() {
+        OutputStream stream = sink.get();
+        return stream != null ? stream : fallback;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // bound streams are flushed by their owners when they are done
+        if (sink.get() == null) {
+            fallback.flush();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package edu.washington.cs.cse490h.lib;
+
+/**
+ * Handle to a timer interrupt added with Node.addTimer, which lets the node
+ * cancel the timer before it fires.
+ */
+public interface TimeoutHandle {
+    /**
+     * Cancel the timer. This is cheap, so there is no need to let a timer fire
+     * only to ignore it.
+     * 
+     * @return true if the timer was pending and will now never fire, false if
+     *         it has already fired or been cancelled
+     */
+    public boolean cancel();
+
+    /**
+     * @return true if the timer has neither fired nor been cancelled
+     */
+    public boolean isPending();
+}
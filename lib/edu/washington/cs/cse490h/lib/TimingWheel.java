@@ -0,0 +1,174 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.List;
+
+import edu.washington.cs.cse490h.lib.Manager.Timeout;
+
+/**
+ * Hashed timing wheel holding the timeouts that have not fired yet. A timeout
+ * lives in the bucket for its fire time modulo the number of buckets, in a
+ * doubly linked list threaded through the Timeout objects themselves, so
+ * adding and cancelling are O(1). Expiring a time step only looks at that
+ * step's bucket, so the cost per step depends on how many timeouts expire
+ * rather than on how many are pending.
+ */
+class TimingWheel {
+    public static final int DEFAULT_NUM_BUCKETS = 256;
+
+    private final Timeout[] buckets;
+    private final int mask;
+    private int size;
+
+    // every time step up to and including this one has been expired
+    private long lastExpired;
+
+    /**
+     * Create a new, empty timing wheel.
+     * 
+     * @param numBuckets
+     *            The number of buckets, which must be a power of two
+     */
+    TimingWheel(int numBuckets) {
+        if (numBuckets <= 0 || (numBuckets & (numBuckets - 1)) != 0) {
+            throw new IllegalArgumentException(
+                    "Number of buckets must be a power of two: " + numBuckets);
+        }
+        buckets = new Timeout[numBuckets];
+        mask = numBuckets - 1;
+        size = 0;
+        lastExpired = -1;
+    }
+
+    TimingWheel() {
+        this(DEFAULT_NUM_BUCKETS);
+    }
+
+    /**
+     * Add a timeout. A timeout whose fire time has already been expired is
+     * expired on the next call to expire.
+     * 
+     * @param to
+     *            The timeout to add. It must not already be in a wheel.
+     */
+    void add(Timeout to) {
+        long slot = Math.max(to.fireTime, lastExpired + 1);
+        int bucket = (int) (slot & mask);
+
+        to.prev = null;
+        to.next = buckets[bucket];
+        if (to.next != null) {
+            to.next.prev = to;
+        }
+        buckets[bucket] = to;
+        to.bucket = bucket;
+        size++;
+    }
+
+    /**
+     * Remove a timeout.
+     * 
+     * @param to
+     *            The timeout to remove
+     * @return true if the timeout was in the wheel
+     */
+    boolean remove(Timeout to) {
+        if (to.bucket < 0) {
+            return false;
+        }
+        unlink(to);
+        return true;
+    }
+
+    /**
+     * Remove all the timeouts that belong to a node.
+     * 
+     * @param node
+     *            The node whose timeouts should be removed
+     * @return The number of timeouts removed
+     */
+    int removeAll(Node node) {
+        int removed = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            Timeout to = buckets[i];
+            while (to != null) {
+                Timeout next = to.next;
+                if (to.node == node) {
+                    unlink(to);
+                    removed++;
+                }
+                to = next;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove every timeout.
+     */
+    void clear() {
+        for (int i = 0; i < buckets.length; i++) {
+            while (buckets[i] != null) {
+                unlink(buckets[i]);
+            }
+        }
+    }
+
+    /**
+     * Take out every timeout that fires at or before the given time.
+     * 
+     * @param now
+     *            The current time
+     * @param expired
+     *            The list to append the expired timeouts to
+     */
+    void expire(long now, List<Timeout> expired) {
+        if (now <= lastExpired) {
+            return;
+        }
+
+        // look at each bucket at most once, even after a long gap
+        long first = Math.max(lastExpired + 1, now - mask);
+        for (long t = first; t <= now; t++) {
+            int bucket = (int) (t & mask);
+            Timeout to = buckets[bucket];
+            while (to != null) {
+                Timeout next = to.next;
+                if (to.fireTime <= now) {
+                    unlink(to);
+                    expired.add(to);
+                }
+                to = next;
+            }
+        }
+        lastExpired = now;
+    }
+
+    /**
+     * @return The number of timeouts in the wheel
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true if there are no timeouts in the wheel
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void unlink(Timeout to) {
+        if (to.prev == null) {
+            buckets[to.bucket] = to.next;
+        } else {
+            to.prev.next = to.next;
+        }
+        if (to.next != null) {
+            to.next.prev = to.prev;
+        }
+        to.prev = null;
+        to.next = null;
+        to.bucket = -1;
+        size--;
+    }
+}
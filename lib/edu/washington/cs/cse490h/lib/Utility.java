@@ -11,14 +11,16 @@ import javax.xml.bind.DatatypeConverter;
 public class Utility {
 
     private static final String CHARSET = "UTF-8";
-    static Random randNumGen;
 
+    /**
+     * @return The RNG of the current simulation. See SimulationContext.
+     */
     public static Random getRNG() {
-        return randNumGen;
+        return SimulationContext.current().getRNG();
     }
 
     public static void setRNG(Random r) {
-        randNumGen = r;
+        SimulationContext.current().setRNG(r);
     }
 
     /**
@@ -74,24 +76,21 @@ public class Utility {
         return "''";
     }
 
-    static String realFilename(int nodeAddr, String filename) {
-        return "storage/" + nodeAddr + "/" + filename;
+    static String realFilename(Node n, String filename) {
+        return n.getContext().realFilename(n.addr, filename);
     }
 
-    static void mkdirs(int nodeAddr) {
-        File f = new File("storage/" + nodeAddr + "");
-        if (!f.exists()) {
-            f.mkdirs();
-        }
+    static void mkdirs(Node n) {
+        n.getContext().mkdirs(n.addr);
     }
 
     public static boolean fileExists(Node n, String filename) {
-        File f = new File(realFilename(n.addr, filename));
+        File f = new File(realFilename(n, filename));
         return f.exists();
     }
 
     public static long fileTimestamp(Node n, String filename) {
-        File f = new File(realFilename(n.addr, filename));
+        File f = new File(realFilename(n, filename));
         return f.lastModified();
     }
 
@@ -1,36 +1,45 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
 
 public class VectorTime {
-	private ArrayList<Integer> vector = null;
+	// ",0" repeated, written in one go for the run of zeros at the end; grown
+	// on demand, and a race only builds the same array twice
+	private static volatile char[] zeroTail = new char[0];
+
+	private final int[] vector;
 	public int vecLength = 0;
+	// one past the highest index that is not 0; everything from here is 0
+	private int extent = 0;
+	// the string form, or null if the vector changed since it was built
+	private String serialized = null;
+	// scratch space for writing out one clock value
+	private final char[] digits = new char[10];
 
 	/**
 	 * Builds a blank VectorTime
 	 * @param maxNodes the max vector length
 	 */
 	public VectorTime(int maxNodes) {
-		this.vector = new ArrayList<Integer>(maxNodes);
-		for (int i = 0; i < maxNodes; i++) {
-			this.vector.add(0);
-		}
+		this.vector = new int[maxNodes];
 		vecLength = maxNodes;
 	}
-	
+
 	/**
 	 * @return length of the vector time
 	 */
 	public int length() {
 		return vecLength;
 	}
-	
-	
+
+
 	/**
 	 * Returns the clock value at an index
 	 */
 	public int get(int index) {
-		return this.vector.get(index);
+		return this.vector[index];
 	}
 
 	/**
@@ -41,10 +50,12 @@ public class VectorTime {
 	public boolean lessThan(VectorTime t) {
 		assert(t.vecLength == this.vecLength);
 		boolean foundStrictlyLess = false;
-		for (int i = 0; i < vecLength; ++i) {
-			if (vector.get(i) < t.get(i))
+		// past both extents everything is 0 on both sides
+		int end = Math.max(extent, t.extent);
+		for (int i = 0; i < end; ++i) {
+			if (vector[i] < t.vector[i])
 				foundStrictlyLess = true;
-			else if (vector.get(i) > t.get(i))
+			else if (vector[i] > t.vector[i])
 				return false;
 		}
 		return foundStrictlyLess;
@@ -55,12 +66,12 @@ public class VectorTime {
 	 */
 	public boolean isOneTime() {
 		boolean sawOne = false;
-		for (int i = 0; i < vecLength; ++i) {
-			if (sawOne && vector.get(i) == 1)
+		for (int i = 0; i < extent; ++i) {
+			if (sawOne && vector[i] == 1)
 				return false;
-			if (vector.get(i) == 1)
+			if (vector[i] == 1)
 				sawOne = true;
-			if (vector.get(i) > 0)
+			if (vector[i] > 0)
 				return false;
 		}
 		return true;
@@ -72,15 +83,19 @@ public class VectorTime {
 	public boolean isSingular() {
 		return vecLength == 1;
 	}
-	
+
 	/**
 	 * Increments vtime at an index
 	 * @param index
 	 */
 	public void step(int index) {
-		vector.set(index, vector.get(index) + 1);
+		vector[index]++;
+		if (index >= extent) {
+			extent = index + 1;
+		}
+		serialized = null;
 	}
-	
+
 	/**
 	 * Updates to be at least as large as another vtime. Used during message passing
 	 * and other communication between nodes. Usually you would need to call this.step()
@@ -89,35 +104,96 @@ public class VectorTime {
 	 */
 	public void updateTo(VectorTime t) {
 		assert(t.vecLength == this.vecLength);
-		for (int i = 0; i < vecLength; ++i) {
-			if (vector.get(i) < t.get(i))
-				vector.set(i, t.get(i));
+		boolean changed = false;
+		for (int i = 0; i < t.extent; ++i) {
+			if (vector[i] < t.vector[i]) {
+				vector[i] = t.vector[i];
+				changed = true;
+			}
+		}
+		if (changed) {
+			if (t.extent > extent) {
+				extent = t.extent;
+			}
+			serialized = null;
 		}
 	}
-	
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((vector == null) ? 0 : vector.hashCode());
-		for (int i = 0; i < vecLength; ++i) {
-			result += prime*result + vector.get(i).hashCode();
+		return prime + Arrays.hashCode(vector);
+	}
+
+	/**
+	 * Writes the Synoptic-string representation of this vector, as returned
+	 * by toString, without building the string.
+	 * @param out the writer to write to
+	 * @throws IOException if the writer fails
+	 */
+	public void writeTo(Writer out) throws IOException {
+		if (serialized != null) {
+			out.write(serialized);
+			return;
+		}
+		if (vecLength == 0) {
+			return;
+		}
+		// the first value has no comma in front of it
+		int first = extent > 0 ? vector[0] : 0;
+		writeInt(out, first);
+		for (int i = 1; i < extent; i++) {
+			out.write(',');
+			writeInt(out, vector[i]);
+		}
+		int zeros = vecLength - Math.max(extent, 1);
+		if (zeros > 0) {
+			out.write(zeroTail(zeros), 0, 2 * zeros);
+		}
+	}
+
+	private void writeInt(Writer out, int value) throws IOException {
+		if (value >= 0 && value < 10) {
+			out.write('0' + value);
+			return;
+		}
+		// clock values only ever grow from 0, so value is positive here
+		int pos = digits.length;
+		while (value > 0) {
+			digits[--pos] = (char) ('0' + value % 10);
+			value /= 10;
 		}
-		return result;
+		out.write(digits, pos, digits.length - pos);
 	}
-	
+
+	private static char[] zeroTail(int zeros) {
+		char[] tail = zeroTail;
+		if (tail.length < 2 * zeros) {
+			tail = new char[2 * zeros];
+			for (int i = 0; i < tail.length; i += 2) {
+				tail[i] = ',';
+				tail[i + 1] = '0';
+			}
+			zeroTail = tail;
+		}
+		return tail;
+	}
+
 	/**
 	 * Returns a Synoptic-string representation for this vector, which
 	 * looks like "1,2,3"
 	 */
 	public String toString() {
-		String ret = "";
-		for (int i = 0; i < vecLength; i++) {
-			if (i != 0) {
-				ret += ",";
+		if (serialized == null) {
+			StringBuilder ret = new StringBuilder(2 * vecLength + 8);
+			for (int i = 0; i < vecLength; i++) {
+				if (i != 0) {
+					ret.append(',');
+				}
+				ret.append(vector[i]);
 			}
-			ret += vector.get(i).toString();
+			serialized = ret.toString();
 		}
-		return ret;
+		return serialized;
 	}
 }
@@ -0,0 +1,192 @@
+package edu.washington.cs.cse490h.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.lib.MpscQueue;
+
+public class MpscQueueTests {
+    /**
+     * Fill a queue, and check that offer fails once it is full and succeeds
+     * again once the consumer has freed a slot.
+     */
+    @Test
+    public void fullQueueOfferTest() {
+        MpscQueue<Integer> queue = new MpscQueue<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        assertFalse(queue.offer(5));
+    }
+
+    /**
+     * A capacity that is not a power of two is rounded up.
+     */
+    @Test
+    public void capacityRoundedUpTest() {
+        MpscQueue<Integer> queue = new MpscQueue<Integer>(3);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+    }
+
+    /**
+     * Go around the ring many times, with the head and tail in every slot,
+     * and check that elements come out in the order they went in.
+     */
+    @Test
+    public void wraparoundTest() {
+        MpscQueue<Integer> queue = new MpscQueue<Integer>(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 1000; round++) {
+            // a number of elements that does not divide the capacity, so the
+            // ends of each round land in different slots
+            for (int i = 0; i < 3; i++) {
+                assertTrue(queue.offer(next++));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+            }
+            assertNull(queue.poll());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    /**
+     * drainTo moves everything in order, leaves the queue empty, and leaves
+     * it usable across the end of the ring.
+     */
+    @Test
+    public void drainToOrderTest() {
+        MpscQueue<Integer> queue = new MpscQueue<Integer>(8);
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(0, queue.drainTo(drained));
+
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i);
+        }
+        assertEquals(Integer.valueOf(0), queue.poll());
+        // wraps past the end of the ring
+        for (int i = 5; i < 9; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(9));
+
+        assertEquals(8, queue.drainTo(drained));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(Integer.valueOf(i + 1), drained.get(i));
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+
+        assertTrue(queue.offer(9));
+        assertEquals(Integer.valueOf(9), queue.poll());
+    }
+
+    /**
+     * Run several producers against one consumer on a small queue, so that
+     * producers often find it full, and check that every element arrives
+     * once and each producer's elements arrive in the order they were sent.
+     */
+    @Test
+    public void multiProducerTest() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final MpscQueue<Integer> queue = new MpscQueue<Integer>(16);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer(id * perProducer + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        List<Integer> batch = new ArrayList<Integer>();
+        int received = 0;
+        while (received < producers * perProducer) {
+            // alternate between the two ways of taking elements
+            Integer e = queue.poll(10, TimeUnit.SECONDS);
+            if (e == null) {
+                break;
+            }
+            batch.add(e);
+            queue.drainTo(batch);
+            for (Integer v : batch) {
+                int id = v / perProducer;
+                assertEquals(next[id], v % perProducer);
+                next[id]++;
+            }
+            received += batch.size();
+            batch.clear();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(producers * perProducer, received);
+        assertNull(queue.poll());
+    }
+
+    /**
+     * poll with a timeout returns null if nothing comes, and is woken up by
+     * an offer while it is parked.
+     */
+    @Test
+    public void pollWakeupTest() throws InterruptedException {
+        final MpscQueue<Integer> queue = new MpscQueue<Integer>(4);
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        final Integer[] result = new Integer[1];
+        final long[] waited = new long[1];
+        Thread consumer = new Thread() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    result[0] = queue.poll(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                waited[0] = System.nanoTime() - start;
+            }
+        };
+        consumer.start();
+
+        // wait until the consumer has parked
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (consumer.getState() != Thread.State.TIMED_WAITING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.TIMED_WAITING, consumer.getState());
+
+        assertTrue(queue.offer(42));
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals(Integer.valueOf(42), result[0]);
+        assertTrue(waited[0] < TimeUnit.SECONDS.toNanos(10));
+    }
+}
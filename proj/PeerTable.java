@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-peer state indexed directly by node address. Addresses are small and
+ * dense, so an array lookup replaces boxing and hashing the address on every
+ * packet.
+ */
+public class PeerTable<V> {
+
+	// same as Manager.MAX_ADDRESS, which is not visible outside the lib package
+	public static final int MAX_ADDRESS = 255;
+
+	private Object[] entries;
+	private int size;
+
+	public PeerTable() {
+		entries = new Object[MAX_ADDRESS + 1];
+		size = 0;
+	}
+
+	/**
+	 * @return true if addr can be used as a key
+	 */
+	public static boolean isValidAddress(int addr) {
+		return addr >= 0 && addr <= MAX_ADDRESS;
+	}
+
+	/**
+	 * @param addr
+	 *            The address of the peer
+	 * @return The state for the peer, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int addr) {
+		if (!isValidAddress(addr)) {
+			return null;
+		}
+		return (V) entries[addr];
+	}
+
+	/**
+	 * @param addr
+	 *            The address of the peer
+	 * @param value
+	 *            The new state for the peer, not null
+	 * @return The previous state for the peer, or null if there was none
+	 * @throws IllegalArgumentException
+	 *             If the address is out of range
+	 */
+	public V put(int addr, V value) {
+		if (!isValidAddress(addr)) {
+			throw new IllegalArgumentException("Invalid address: " + addr);
+		}
+		V old = get(addr);
+		entries[addr] = value;
+		if (old == null) {
+			size++;
+		}
+		return old;
+	}
+
+	/**
+	 * @param addr
+	 *            The address of the peer
+	 * @return The state that was removed, or null if there was none
+	 */
+	public V remove(int addr) {
+		V old = get(addr);
+		if (old != null) {
+			entries[addr] = null;
+			size--;
+		}
+		return old;
+	}
+
+	public boolean containsKey(int addr) {
+		return get(addr) != null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return A snapshot of the states in the table, in address order
+	 */
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(size);
+		for (int addr = 0; addr <= MAX_ADDRESS; addr++) {
+			V value = get(addr);
+			if (value != null) {
+				values.add(value);
+			}
+		}
+		return values;
+	}
+}
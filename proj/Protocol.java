@@ -10,12 +10,20 @@ public class Protocol {
 	public static final int DATA = 0;
 	public static final int ACK = 1;
 
-    // initiate a new session
+    // announce our current session to a peer that addressed an old one
 	public static final int INITIATE_SESSION = 2;
 
-    // acknowledge that a session is all set
+    // no longer sent; handled like INITIATE_SESSION
 	public static final int ACK_SESSION = 3;
 
+    // several RIO messages to the same peer coalesced into one DATA packet.
+    // This is a RIOPacket protocol.
+    public static final int RIO_BATCH = 4;
+
+    // a piece of a RIO message too large for one DATA packet. This is a
+    // RIOPacket protocol.
+    public static final int RIO_FRAGMENT = 5;
+
 	// Protocols for 2PC
 	public static final int VOTEREQ_PKT = 10;
 	public static final int VOTE_PKT = 11;
@@ -31,8 +39,19 @@ public class Protocol {
 
     public static final int PAXOS = 33;
 
+    // Paxos UPDATE messages, which carry a learner's whole backlog and can be
+    // large, so they go on the bulk lane
+    public static final int PAXOS_UPDATE = 34;
+
 	public static final int MAX_PROTOCOL = 127;
 
+    // lanes of the RIO layer. Each lane is an in-order stream of its own to
+    // every peer, so messages on one lane never wait behind those on another.
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_DEFAULT = 1;
+    public static final int LANE_BULK = 2;
+    public static final int NUM_LANES = 3;
+
 	/**
 	 * Tests if this is a valid protocol for a Packet
 	 *
@@ -60,9 +79,37 @@ public class Protocol {
 				|| protocol == DECISION_PKT || protocol == DECISIONREQ_PKT
                 || protocol == RIOTEST_PKT
                 || protocol == INITIATE_SESSION
+                || protocol == RIO_BATCH
+                || protocol == RIO_FRAGMENT
                 || protocol == CHITTER_RPC_REQUEST
                 || protocol == CHITTER_RPC_REPLY
-                || protocol == PAXOS);
+                || protocol == PAXOS
+                || protocol == PAXOS_UPDATE);
+	}
+
+	/**
+	 * The lane the RIO layer sends a protocol's messages on unless the node
+	 * picks another. Consensus and commit messages get the control lane, so
+	 * they do not queue up behind large transfers such as Paxos catch-up
+	 * updates, which get the bulk lane.
+	 *
+	 * @param protocol
+	 *            A RIOPacket protocol
+	 * @return The lane for the protocol
+	 */
+	public static int getDefaultLane(int protocol) {
+		switch (protocol) {
+		case VOTEREQ_PKT:
+		case VOTE_PKT:
+		case DECISION_PKT:
+		case DECISIONREQ_PKT:
+		case PAXOS:
+			return LANE_CONTROL;
+		case PAXOS_UPDATE:
+			return LANE_BULK;
+		default:
+			return LANE_DEFAULT;
+		}
 	}
 
 	/**
@@ -80,6 +127,10 @@ public class Protocol {
 			return "RIO Data Packet";
 		case ACK:
 			return "RIO Acknowledgement Packet";
+		case RIO_BATCH:
+			return "RIO Batch Packet";
+		case RIO_FRAGMENT:
+			return "RIO Fragment Packet";
 		case VOTEREQ_PKT:
 			return "Vote Request Packet";
 		case VOTE_PKT:
@@ -92,6 +143,8 @@ public class Protocol {
 			return "RIO Testing Packet";
         case PAXOS:
             return "Paxos Communication Packet";
+        case PAXOS_UPDATE:
+            return "Paxos Update Packet";
 		default:
 			return "Unknown Protocol";
 		}
@@ -0,0 +1,100 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Accumulates several messages bound for the same peer so they can be sent
+ * as the payload of a single RIOPacket whose protocol is RIO_BATCH. The
+ * receiver splits the batch up again with RIOPacket.unbatch.
+ * 
+ * Each message is encoded as a frame:
+ *        protocol = 1 byte
+ *        length = 4 bytes
+ *        payload = length bytes
+ */
+public class RIOBatch {
+
+	public static final int FRAME_HEADER_SIZE = 5;
+
+	private ByteBuffer frames;
+	private int count;
+
+	// the first message, kept so a batch of one can be sent as a plain packet
+	private int firstProtocol;
+	private byte[] firstPayload;
+
+	public RIOBatch(int initialCapacity) {
+		frames = ByteBuffer.allocate(Math.max(initialCapacity, FRAME_HEADER_SIZE));
+		count = 0;
+	}
+
+	/**
+	 * Add a message to the batch.
+	 * 
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 */
+	public void add(int protocol, byte[] payload) {
+		int needed = FRAME_HEADER_SIZE + payload.length;
+		if (frames.remaining() < needed) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(frames.capacity() * 2, frames.position() + needed));
+			frames.flip();
+			bigger.put(frames);
+			frames = bigger;
+		}
+		frames.put((byte) protocol);
+		frames.putInt(payload.length);
+		frames.put(payload);
+
+		if (count == 0) {
+			firstProtocol = protocol;
+			firstPayload = payload;
+		}
+		count++;
+	}
+
+	/**
+	 * @return The number of messages in the batch
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The number of bytes toPacket would put in the payload of a batch
+	 */
+	public int getSize() {
+		return frames.position();
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Turn the batch into a packet. A batch holding a single message becomes
+	 * an ordinary packet for that message, since framing it would gain
+	 * nothing.
+	 * 
+	 * @param seqNum
+	 *            The sequence number of the packet
+	 * @return The packet
+	 */
+	public RIOPacket toPacket(int seqNum) {
+		if (count == 1) {
+			return new RIOPacket(firstProtocol, seqNum, 0, firstPayload);
+		}
+		byte[] payload = new byte[frames.position()];
+		System.arraycopy(frames.array(), 0, payload, 0, payload.length);
+		return new RIOPacket(Protocol.RIO_BATCH, seqNum, 0, payload);
+	}
+
+	/**
+	 * Empty the batch so it can be reused.
+	 */
+	public void clear() {
+		frames.clear();
+		count = 0;
+		firstPayload = null;
+	}
+}
@@ -0,0 +1,335 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import edu.washington.cs.cse490h.lib.Node;
+import edu.washington.cs.cse490h.lib.PersistentStorageOutputStream;
+import edu.washington.cs.cse490h.lib.Utility;
+
+/**
+ * Durable copy of the state of a reliable, in-order message layer: the session
+ * of the node and, for each peer, its session and, for each lane, how far its
+ * messages have been delivered and the messages to it that are not ACKed yet.
+ *
+ * Checkpoints are written whole, alternating between two files. Each one
+ * carries a generation number and a checksum, so a crash in the middle of
+ * writing one leaves the previous checkpoint to recover from. Format:
+ *        magic = 4 bytes
+ *        version = 1 byte
+ *        generation = 8 bytes
+ *        session = 8 bytes
+ *        number of peers = 2 bytes
+ *        peers, each:
+ *            address = 2 bytes
+ *            peer session = 8 bytes, 0 if unknown
+ *            number of incoming channels = 1 byte
+ *            incoming channels, each: lane = 1 byte, epoch = 8 bytes, last
+ *                delivered = 4 bytes, packets of a partly delivered message
+ *            number of outgoing channels = 1 byte
+ *            outgoing channels, each: lane = 1 byte, base = 4 bytes, last
+ *                sent = 4 bytes, packets
+ *        checksum = 8 bytes (CRC32 of everything before it)
+ * where a list of packets is a count of 4 bytes followed by, for each packet,
+ * its length in 4 bytes and its packed form.
+ */
+public class RIOCheckpoint {
+
+	public static final String FILENAME = ".rio_checkpoint";
+
+	private static final int MAGIC = 0x52494f43;
+	private static final byte VERSION = 2;
+
+	/**
+	 * What the checkpoint holds for one peer.
+	 */
+	public static class Peer {
+		// the peer's session, or 0 if we did not know it
+		long peerSession;
+		List<In> ins = new ArrayList<In>();
+		List<Out> outs = new ArrayList<Out>();
+	}
+
+	/**
+	 * An incoming channel.
+	 */
+	public static class In {
+		int lane;
+		long epoch;
+		int lastSeqNumDelivered;
+		// fragments of a message that has not been delivered whole yet
+		List<RIOPacket> pendingFragments = new ArrayList<RIOPacket>();
+	}
+
+	/**
+	 * An outgoing channel.
+	 */
+	public static class Out {
+		int lane;
+		int baseSeqNum;
+		int lastSeqNumSent;
+		// everything not ACKed yet, in sequence number order
+		List<RIOPacket> packets = new ArrayList<RIOPacket>();
+	}
+
+	private long generation;
+	private long session;
+	private PeerTable<Peer> peers;
+
+	public RIOCheckpoint() {
+		generation = 0;
+		session = 0;
+		peers = new PeerTable<Peer>();
+	}
+
+	public long getSession() {
+		return session;
+	}
+
+	public void setSession(long session) {
+		this.session = session;
+	}
+
+	/**
+	 * @param addr
+	 *            The address of a peer
+	 * @return What the checkpoint holds for the peer, or null if nothing
+	 */
+	public Peer getPeer(int addr) {
+		return peers.get(addr);
+	}
+
+	/**
+	 * @param addr
+	 *            The address of a peer
+	 * @return The entry for the peer, added if there is none yet
+	 */
+	public Peer addPeer(int addr) {
+		Peer peer = peers.get(addr);
+		if (peer == null) {
+			peer = new Peer();
+			peers.put(addr, peer);
+		}
+		return peer;
+	}
+
+	/**
+	 * Forget every peer, to fill the checkpoint in again before the next
+	 * write.
+	 */
+	public void clear() {
+		peers = new PeerTable<Peer>();
+	}
+
+	/**
+	 * Write the checkpoint to the node's storage, over the older of the two
+	 * checkpoint files. It only counts once this returns.
+	 *
+	 * @param n
+	 *            The node whose storage to use
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	public void write(Node n) throws IOException {
+		byte[] bytes = encode(generation + 1);
+		PersistentStorageOutputStream out = n.getOutputStream(filename(generation + 1), false);
+		try {
+			// one write, so the whole checkpoint is one disk event
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		generation++;
+	}
+
+	/**
+	 * Read the newest intact checkpoint from the node's storage.
+	 *
+	 * @param n
+	 *            The node whose storage to use
+	 * @return The checkpoint, or null if there is none
+	 */
+	public static RIOCheckpoint read(Node n) {
+		RIOCheckpoint newest = null;
+		for (int i = 0; i < 2; i++) {
+			RIOCheckpoint cp = decode(readFile(n, filename(i)));
+			if (cp != null && (newest == null || cp.generation > newest.generation)) {
+				newest = cp;
+			}
+		}
+		return newest;
+	}
+
+	private static String filename(long generation) {
+		return FILENAME + "." + (generation & 1);
+	}
+
+	/**
+	 * @return The contents of the file, or null if it cannot be read
+	 */
+	private static byte[] readFile(Node n, String filename) {
+		if (!Utility.fileExists(n, filename)) {
+			return null;
+		}
+		InputStream in = null;
+		try {
+			in = n.getInputStream(filename);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				bytes.write(buf, 0, len);
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing more to read anyway
+				}
+			}
+		}
+	}
+
+	private byte[] encode(long generation) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(generation);
+			out.writeLong(session);
+			out.writeShort(peers.size());
+			for (int addr = 0; addr <= PeerTable.MAX_ADDRESS; addr++) {
+				Peer peer = peers.get(addr);
+				if (peer == null) {
+					continue;
+				}
+				out.writeShort(addr);
+				out.writeLong(peer.peerSession);
+				out.writeByte(peer.ins.size());
+				for (In in : peer.ins) {
+					out.writeByte(in.lane);
+					out.writeLong(in.epoch);
+					out.writeInt(in.lastSeqNumDelivered);
+					writePackets(out, in.pendingFragments);
+				}
+				out.writeByte(peer.outs.size());
+				for (Out o : peer.outs) {
+					out.writeByte(o.lane);
+					out.writeInt(o.baseSeqNum);
+					out.writeInt(o.lastSeqNumSent);
+					writePackets(out, o.packets);
+				}
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeLong(crc.getValue());
+			out.flush();
+		} catch (IOException e) {
+			// cannot happen with a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writePackets(DataOutputStream out, List<RIOPacket> packets) throws IOException {
+		out.writeInt(packets.size());
+		for (RIOPacket pkt : packets) {
+			byte[] packed = pkt.pack();
+			out.writeInt(packed.length);
+			out.write(packed);
+		}
+	}
+
+	/**
+	 * @return The decoded checkpoint, or null if it is missing, torn or of an
+	 *         unknown version
+	 */
+	private static RIOCheckpoint decode(byte[] bytes) {
+		if (bytes == null || bytes.length < 8) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 8);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			in.skipBytes(bytes.length - 8);
+			if (in.readLong() != crc.getValue()) {
+				return null;
+			}
+
+			in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				return null;
+			}
+			RIOCheckpoint cp = new RIOCheckpoint();
+			cp.generation = in.readLong();
+			cp.session = in.readLong();
+			int numPeers = in.readUnsignedShort();
+			for (int i = 0; i < numPeers; i++) {
+				int addr = in.readUnsignedShort();
+				if (!PeerTable.isValidAddress(addr)) {
+					return null;
+				}
+				Peer peer = cp.addPeer(addr);
+				peer.peerSession = in.readLong();
+				int numIns = in.readUnsignedByte();
+				for (int j = 0; j < numIns; j++) {
+					In channel = new In();
+					channel.lane = in.readUnsignedByte();
+					channel.epoch = in.readLong();
+					channel.lastSeqNumDelivered = in.readInt();
+					channel.pendingFragments = readPackets(in);
+					peer.ins.add(channel);
+				}
+				int numOuts = in.readUnsignedByte();
+				for (int j = 0; j < numOuts; j++) {
+					Out channel = new Out();
+					channel.lane = in.readUnsignedByte();
+					channel.baseSeqNum = in.readInt();
+					channel.lastSeqNumSent = in.readInt();
+					channel.packets = readPackets(in);
+					peer.outs.add(channel);
+				}
+			}
+			return cp;
+		} catch (IOException e) {
+			// truncated, will return null
+		} catch (IllegalArgumentException e) {
+			// will return null
+		}
+		return null;
+	}
+
+	private static List<RIOPacket> readPackets(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Negative packet count");
+		}
+		List<RIOPacket> packets = new ArrayList<RIOPacket>();
+		for (int i = 0; i < count; i++) {
+			int length = in.readInt();
+			if (length < 0 || length > in.available()) {
+				throw new IOException("Bad packet length");
+			}
+			byte[] packed = new byte[length];
+			in.readFully(packed);
+			RIOPacket pkt = RIOPacket.unpack(packed);
+			if (pkt == null) {
+				throw new IOException("Corrupted packet");
+			}
+			packets.add(pkt);
+		}
+		return packets;
+	}
+}
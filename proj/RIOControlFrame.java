@@ -0,0 +1,211 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-width binary encoding for the control messages of the reliable,
+ * in-order message layer: ACKs and session announcements. These are carried
+ * directly in the payload of a Packet whose protocol is ACK or
+ * INITIATE_SESSION.
+ * 
+ * Every frame starts with a version byte so the format can change without
+ * being mistaken for an older one.
+ */
+public class RIOControlFrame {
+
+	public static final byte VERSION = 4;
+
+	// version + session id
+	public static final int SESSION_FRAME_SIZE = 9;
+	// version + two sessions + lane + cumulative ACK + advertised window +
+	// number of selective ranges
+	public static final int ACK_HEADER_SIZE = 26;
+	// start + end of a selective range
+	public static final int ACK_RANGE_SIZE = 8;
+	public static final int MAX_ACK_RANGES = 0xFFFF;
+	public static final int MAX_WINDOW = 0xFFFF;
+
+	private long epoch;
+	private long ackedEpoch;
+	private int lane;
+	private int cumulativeAck;
+	private int window;
+	private List<int[]> ranges;
+
+	private RIOControlFrame(long epoch, long ackedEpoch, int lane, int cumulativeAck, int window, List<int[]> ranges) {
+		this.epoch = epoch;
+		this.ackedEpoch = ackedEpoch;
+		this.lane = lane;
+		this.cumulativeAck = cumulativeAck;
+		this.window = window;
+		this.ranges = ranges;
+	}
+
+	/**
+	 * @return The session of the node that sent the ACK
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return The session of the node whose packets are being ACKed
+	 */
+	public long getAckedEpoch() {
+		return ackedEpoch;
+	}
+
+	/**
+	 * @return The lane whose packets are being ACKed
+	 */
+	public int getLane() {
+		return lane;
+	}
+
+	/**
+	 * @return The sequence number up to which everything has been received
+	 */
+	public int getCumulativeAck() {
+		return cumulativeAck;
+	}
+
+	/**
+	 * @return How many sequence numbers past the cumulative ACK the receiver
+	 *         has room for
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return The ranges [start, end] received beyond the cumulative ACK
+	 */
+	public List<int[]> getRanges() {
+		return ranges;
+	}
+
+	/**
+	 * Pack an ACK frame. Format:
+	 *        version = 1 byte
+	 *        session of the ACKer = 8 bytes
+	 *        session being ACKed = 8 bytes
+	 *        lane = 1 byte
+	 *        cumulative ACK = 4 bytes
+	 *        advertised window = 2 bytes
+	 *        number of ranges = 2 bytes
+	 *        ranges = 8 bytes each (start, end)
+	 * Ranges beyond MAX_ACK_RANGES are left out; the sender will learn about
+	 * them from a later ACK.
+	 * 
+	 * @param epoch
+	 *            Our session
+	 * @param ackedEpoch
+	 *            The session of the peer whose packets we are ACKing
+	 * @param lane
+	 *            The lane of the packets
+	 * @param cumulativeAck
+	 *            All sequence numbers up to and including this one were received
+	 * @param window
+	 *            How many sequence numbers past the cumulative ACK the
+	 *            receiver has room for, capped at MAX_WINDOW
+	 * @param ranges
+	 *            Ranges [start, end] received beyond the cumulative ACK
+	 * @return The encoded frame
+	 */
+	public static byte[] packAck(long epoch, long ackedEpoch, int lane, int cumulativeAck, int window, List<int[]> ranges) {
+		int numRanges = Math.min(ranges.size(), MAX_ACK_RANGES);
+		ByteBuffer buf = ByteBuffer.allocate(ACK_HEADER_SIZE + numRanges * ACK_RANGE_SIZE);
+
+		buf.put(VERSION);
+		buf.putLong(epoch);
+		buf.putLong(ackedEpoch);
+		buf.put((byte) lane);
+		buf.putInt(cumulativeAck);
+		buf.putShort((short) Math.max(0, Math.min(window, MAX_WINDOW)));
+		buf.putShort((short) numRanges);
+		for (int i = 0; i < numRanges; i++) {
+			buf.putInt(ranges.get(i)[0]);
+			buf.putInt(ranges.get(i)[1]);
+		}
+
+		return buf.array();
+	}
+
+	/**
+	 * Unpack an ACK frame created by packAck.
+	 * 
+	 * @param frame
+	 *            The encoded frame
+	 * @return The decoded ACK, or null if the frame is corrupted or of an
+	 *         unknown version
+	 */
+	public static RIOControlFrame unpackAck(byte[] frame) {
+		if (frame.length < ACK_HEADER_SIZE || frame[0] != VERSION) {
+			return null;
+		}
+
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(frame, 1, frame.length - 1);
+			long epoch = buf.getLong();
+			long ackedEpoch = buf.getLong();
+			int lane = buf.get() & 0xFF;
+			int cumulativeAck = buf.getInt();
+			int window = buf.getShort() & 0xFFFF;
+			int numRanges = buf.getShort() & 0xFFFF;
+			if (buf.remaining() != numRanges * ACK_RANGE_SIZE) {
+				return null;
+			}
+
+			List<int[]> ranges = new ArrayList<int[]>(numRanges);
+			for (int i = 0; i < numRanges; i++) {
+				ranges.add(new int[]{ buf.getInt(), buf.getInt() });
+			}
+			return new RIOControlFrame(epoch, ackedEpoch, lane, cumulativeAck, window, ranges);
+		} catch (BufferUnderflowException e) {
+			// will return null
+		}
+		return null;
+	}
+
+	/**
+	 * Pack a session frame, which announces the sender's current session.
+	 * Format:
+	 *        version = 1 byte
+	 *        session id = 8 bytes
+	 * 
+	 * @param sessionId
+	 *            The session id to announce
+	 * @return The encoded frame
+	 */
+	public static byte[] packSession(long sessionId) {
+		return ByteBuffer.allocate(SESSION_FRAME_SIZE).put(VERSION).putLong(sessionId).array();
+	}
+
+	/**
+	 * Unpack a session frame created by packSession.
+	 * 
+	 * @param frame
+	 *            The encoded frame
+	 * @return The session id
+	 * @throws IllegalArgumentException
+	 *             If the frame is corrupted or of an unknown version
+	 */
+	public static long unpackSession(byte[] frame) throws IllegalArgumentException {
+		if (frame.length != SESSION_FRAME_SIZE || frame[0] != VERSION) {
+			throw new IllegalArgumentException("Corrupted session frame");
+		}
+		return ByteBuffer.wrap(frame, 1, SESSION_FRAME_SIZE - 1).getLong();
+	}
+
+	/**
+	 * String representation of an ACK frame
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer("rio-ack:" + cumulativeAck + " lane:" + lane + " win:" + window);
+		for (int[] range : ranges) {
+			sb.append(" sack:" + range[0] + "-" + range[1]);
+		}
+		return sb.toString();
+	}
+}
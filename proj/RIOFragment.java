@@ -0,0 +1,192 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a message that does not fit in one RIOPacket into fragments, and
+ * puts the fragments back together on the receiving end. Each fragment is
+ * sent as its own RIOPacket with protocol RIO_FRAGMENT, so a lost fragment is
+ * resent on its own. The fragments of a message have consecutive sequence
+ * numbers, so in-order delivery hands them to the Reassembler in order.
+ * 
+ * Each fragment's payload is:
+ *        flags = 1 byte (FLAG_FIRST on the first fragment, FLAG_LAST on the
+ *                final one)
+ *        protocol of the message = 1 byte
+ *        length of the whole message = 4 bytes
+ *        data
+ */
+public class RIOFragment {
+
+	public static final int HEADER_SIZE = 6;
+	public static final int FLAG_LAST = 1;
+	public static final int FLAG_FIRST = 2;
+
+	/**
+	 * @param mtu
+	 *            The largest packed RIOPacket we may send
+	 * @return How much of a message fits in each fragment
+	 */
+	public static int getFragmentDataSize(int mtu) {
+		return Math.max(1, mtu - RIOPacket.HEADER_SIZE - HEADER_SIZE);
+	}
+
+	/**
+	 * @param mtu
+	 *            The largest packed RIOPacket we may send
+	 * @return The largest payload that can go out without being fragmented
+	 */
+	public static int getMaxUnfragmentedSize(int mtu) {
+		return Math.max(1, mtu - RIOPacket.HEADER_SIZE);
+	}
+
+	/**
+	 * Build the payload of one fragment.
+	 * 
+	 * @param protocol
+	 *            The protocol of the whole message
+	 * @param message
+	 *            The whole message
+	 * @param offset
+	 *            Where this fragment's data starts in the message
+	 * @param length
+	 *            How much of the message this fragment carries
+	 * @return The fragment payload
+	 */
+	public static byte[] pack(int protocol, byte[] message, int offset, int length) {
+		int flags = 0;
+		if (offset == 0) {
+			flags |= FLAG_FIRST;
+		}
+		if (offset + length == message.length) {
+			flags |= FLAG_LAST;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length);
+		buf.put((byte) flags);
+		buf.put((byte) protocol);
+		buf.putInt(message.length);
+		buf.put(message, offset, length);
+		return buf.array();
+	}
+
+	/**
+	 * Cut a message into the payloads of its fragments.
+	 * 
+	 * @param protocol
+	 *            The protocol of the message
+	 * @param message
+	 *            The message
+	 * @param mtu
+	 *            The largest packed RIOPacket we may send
+	 * @return The fragment payloads, in order
+	 */
+	public static List<byte[]> split(int protocol, byte[] message, int mtu) {
+		int fragmentSize = getFragmentDataSize(mtu);
+		List<byte[]> fragments = new ArrayList<byte[]>();
+		for (int offset = 0; offset < message.length; offset += fragmentSize) {
+			int length = Math.min(fragmentSize, message.length - offset);
+			fragments.add(pack(protocol, message, offset, length));
+		}
+		return fragments;
+	}
+
+	/**
+	 * @param fragment
+	 *            A RIO_FRAGMENT packet
+	 * @return true if the fragment starts a message
+	 */
+	public static boolean isFirst(RIOPacket fragment) {
+		ByteBuffer buf = fragment.getPayloadBuffer();
+		return buf.hasRemaining() && (buf.get(0) & FLAG_FIRST) != 0;
+	}
+
+	/**
+	 * Puts the fragments of one message at a time back together.
+	 */
+	public static class Reassembler {
+		private final int maxLength;
+		private byte[] message;
+		private int protocol;
+		private int received;
+
+		/**
+		 * @param maxLength
+		 *            The longest message to put back together. A first
+		 *            fragment that claims a longer one is thrown away
+		 *            before anything is allocated for it.
+		 */
+		public Reassembler(int maxLength) {
+			this.maxLength = maxLength;
+		}
+
+		/**
+		 * Add the next fragment.
+		 * 
+		 * @param fragment
+		 *            A RIO_FRAGMENT packet
+		 * @return The whole message as a RIOPacket with the fragment's
+		 *         sequence number and session, once the last fragment has
+		 *         been added, or null. A corrupted message is thrown away.
+		 */
+		public RIOPacket add(RIOPacket fragment) {
+			ByteBuffer buf = fragment.getPayloadBuffer();
+			if (buf.remaining() < HEADER_SIZE) {
+				reset();
+				return null;
+			}
+			int flags = buf.get();
+			int fragProtocol = buf.get();
+			int length = buf.getInt();
+			int dataLength = buf.remaining();
+
+			if ((flags & FLAG_FIRST) != 0) {
+				// a partial message before this one can never be completed
+				reset();
+			}
+			if (message == null) {
+				if ((flags & FLAG_FIRST) == 0) {
+					// the start of this message went to an earlier session
+					return null;
+				}
+				if (length < 0 || length > maxLength) {
+					// a corrupted header
+					return null;
+				}
+				message = new byte[length];
+				protocol = fragProtocol;
+				received = 0;
+			} else if (length != message.length || fragProtocol != protocol) {
+				// the start of this message went missing
+				reset();
+				return null;
+			}
+
+			if (dataLength > message.length - received) {
+				reset();
+				return null;
+			}
+			buf.get(message, received, dataLength);
+			received += dataLength;
+
+			if ((flags & FLAG_LAST) == 0) {
+				return null;
+			}
+
+			RIOPacket whole = null;
+			if (received == message.length) {
+				try {
+					whole = new RIOPacket(protocol, fragment.getSeqNum(), fragment.getSessionId(), message);
+				} catch (IllegalArgumentException e) {
+					// corrupted protocol, will return null
+				}
+			}
+			reset();
+			return whole;
+		}
+
+		private void reset() {
+			message = null;
+			received = 0;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * One message sent to a set of peers with RIONode.RIOMulticast. The message is
+ * encoded once and the same bytes are queued on the channel to each peer. The
+ * record keeps track of which peers have ACKed it, so the sender can go on
+ * once a quorum of them, or all of them, have received it.
+ *
+ * A peer counts once its cumulative ACK covers the message. A peer that never
+ * ACKs it, for instance because the layer gave up on the message (see
+ * RIONode.onRIODrop), never counts.
+ */
+public class RIOMulticastRecord {
+	private int id;
+	private SortedSet<Integer> destAddrs;
+	private int protocol;
+	private byte[] payload;
+	private int quorum;
+
+	// peers that have ACKed the message
+	private SortedSet<Integer> ackedBy;
+
+	/**
+	 * @param id
+	 *            Identifies the multicast among those of the same node
+	 * @param destAddrs
+	 *            The addresses to send to, all valid
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 * @param quorum
+	 *            How many peers have to ACK for a quorum, from 1 up to the
+	 *            number of addresses
+	 * @throws IllegalArgumentException
+	 *             If there are no addresses, or the quorum is out of range
+	 */
+	RIOMulticastRecord(int id, Set<Integer> destAddrs, int protocol, byte[] payload, int quorum) {
+		if (destAddrs.isEmpty()) {
+			throw new IllegalArgumentException("Multicast to no one");
+		}
+		if (quorum < 1 || quorum > destAddrs.size()) {
+			throw new IllegalArgumentException("Quorum of " + quorum + " out of " + destAddrs.size());
+		}
+		this.id = id;
+		this.destAddrs = Collections.unmodifiableSortedSet(new TreeSet<Integer>(destAddrs));
+		this.protocol = protocol;
+		this.payload = payload;
+		this.quorum = quorum;
+		ackedBy = new TreeSet<Integer>();
+	}
+
+	/**
+	 * @return The majority quorum for a number of peers
+	 */
+	public static int majority(int numPeers) {
+		return numPeers / 2 + 1;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return The addresses the message was sent to, in ascending order
+	 */
+	public SortedSet<Integer> getDestinations() {
+		return destAddrs;
+	}
+
+	public int getProtocol() {
+		return protocol;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public int getQuorum() {
+		return quorum;
+	}
+
+	/**
+	 * @return The peers that have ACKed the message so far, in ascending order
+	 */
+	public SortedSet<Integer> getAckedBy() {
+		return Collections.unmodifiableSortedSet(ackedBy);
+	}
+
+	/**
+	 * @param addr
+	 *            The address of a peer
+	 * @return true if the peer has ACKed the message
+	 */
+	public boolean hasAcked(int addr) {
+		return ackedBy.contains(addr);
+	}
+
+	public int getNumAcked() {
+		return ackedBy.size();
+	}
+
+	public boolean hasQuorum() {
+		return ackedBy.size() >= quorum;
+	}
+
+	/**
+	 * @return true if every peer has ACKed the message
+	 */
+	public boolean isComplete() {
+		return ackedBy.size() == destAddrs.size();
+	}
+
+	/**
+	 * Record an ACK from a peer. Later ACKs from the same peer are ignored.
+	 *
+	 * @param addr
+	 *            The address of the peer
+	 * @return true if this was the peer's first ACK
+	 */
+	boolean acked(int addr) {
+		return destAddrs.contains(addr) && ackedBy.add(addr);
+	}
+
+	@Override
+	public String toString() {
+		return "multicast " + id + " to " + destAddrs + ", acked by " + ackedBy + ", quorum " + quorum;
+	}
+}
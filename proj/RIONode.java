@@ -14,12 +14,18 @@ import java.util.*;
 public abstract class RIONode extends Node {
 	private ReliableInOrderMsgLayer RIOLayer;
   private long uuid;
-  public HashMap<Integer, Long> peerSessions; // adr -> uuid for peers
+  // adr -> uuid for peers, valid where hasPeerSession is set
+  private long[] peerSessions;
+  private boolean[] hasPeerSession;
 	
 	public RIONode() {
 		RIOLayer = new ReliableInOrderMsgLayer(this);
-        peerSessions = new HashMap<Integer, Long>();
-        uuid = Utility.getRNG().nextLong();
+        peerSessions = new long[PeerTable.MAX_ADDRESS + 1];
+        hasPeerSession = new boolean[PeerTable.MAX_ADDRESS + 1];
+        do {
+            // 0 stands for an unknown session on the wire
+            uuid = Utility.getRNG().nextLong();
+        } while (uuid == 0);
         //System.out.println("node initialized with uuid: " + uuid);
 	}
 	
@@ -27,10 +33,8 @@ public abstract class RIONode extends Node {
 	public void onReceive(Integer from, int protocol, byte[] msg) {
 		if(protocol == Protocol.ACK) {
 			RIOLayer.RIOAckReceive(from, msg);
-		} else if(protocol == Protocol.INITIATE_SESSION) {
+		} else if(protocol == Protocol.INITIATE_SESSION || protocol == Protocol.ACK_SESSION) {
 			RIOLayer.RIOSessionReceive(from, msg);
-		} else if(protocol == Protocol.ACK_SESSION) {
-			RIOLayer.RIOSessionAck(from, msg);
 		} else {
 			RIOLayer.RIODataReceive(from, msg);
     }
@@ -50,6 +54,112 @@ public abstract class RIONode extends Node {
 		return RIOLayer.RIOSend(destAddr, protocol, payload);
 	}
 
+	/**
+	 * Send the same message to several peers using the reliable, in-order
+	 * delivery layer. The message is encoded once and shared by the channels
+	 * to all of them. onRIOMulticastQuorum is called once a majority of them
+	 * have ACKed it, and onRIOMulticastComplete once all of them have.
+	 * 
+	 * @param destAddrs
+	 *            The addresses to send to
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 * @return The record that keeps track of which peers have ACKed it
+	 */
+	public RIOMulticastRecord RIOMulticast(Set<Integer> destAddrs, int protocol, byte[] payload) {
+		return RIOMulticast(destAddrs, protocol, payload, RIOMulticastRecord.majority(destAddrs.size()));
+	}
+
+	/**
+	 * Send the same message to several peers, with a quorum other than a
+	 * majority.
+	 * 
+	 * @param destAddrs
+	 *            The addresses to send to
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 * @param quorum
+	 *            How many of the peers have to ACK before
+	 *            onRIOMulticastQuorum is called
+	 * @return The record that keeps track of which peers have ACKed it
+	 */
+	public RIOMulticastRecord RIOMulticast(Set<Integer> destAddrs, int protocol, byte[] payload, int quorum) {
+		return RIOLayer.RIOMulticast(destAddrs, protocol, payload, quorum);
+	}
+
+	/**
+	 * Limit how many unACKed messages the RIO layer keeps in flight to a peer.
+	 * Messages beyond the window are queued until it opens up.
+	 * 
+	 * @param destAddr
+	 *            The address of the peer
+	 * @param windowSize
+	 *            The number of messages allowed in flight
+	 */
+	public void setRIOWindowSize(int destAddr, int windowSize) {
+		RIOLayer.setWindowSize(destAddr, windowSize);
+	}
+
+	/**
+	 * Coalesce messages sent to the same peer within a short time into a
+	 * single packet. See ReliableInOrderMsgLayer.BATCH_DELAY and
+	 * MAX_BATCH_SIZE.
+	 * 
+	 * @param batching
+	 *            Whether to batch outgoing messages
+	 */
+	public void setRIOBatching(boolean batching) {
+		RIOLayer.setBatching(batching);
+	}
+
+	/**
+	 * Checkpoint the state of the RIO layer to storage, so that after a crash
+	 * this node picks up its sessions where they left off. A message that made
+	 * it into a checkpoint is neither lost nor delivered twice, whichever end
+	 * crashes. Turning this on recovers from the
+	 * newest checkpoint, so it has to be done in start, before any messages
+	 * are sent. See ReliableInOrderMsgLayer.CHECKPOINT_DELAY.
+	 * 
+	 * @param durable
+	 *            Whether the RIO layer should checkpoint its state
+	 */
+	public void setRIODurable(boolean durable) {
+		RIOLayer.setDurable(durable);
+	}
+
+	/**
+	 * Send the messages of a protocol on a lane. Messages on different lanes
+	 * to the same peer may overtake each other, so a large transfer does not
+	 * hold up short control messages. See Protocol.getDefaultLane for where
+	 * each protocol goes unless told otherwise.
+	 *
+	 * @param protocol
+	 *            The protocol identifier
+	 * @param lane
+	 *            One of Protocol.LANE_CONTROL, LANE_DEFAULT and LANE_BULK
+	 */
+	public void setRIOLane(int protocol, int lane) {
+		RIOLayer.setLane(protocol, lane);
+	}
+
+	/**
+	 * Set how big a share of the sending a lane gets while several lanes have
+	 * messages waiting. See ReliableInOrderMsgLayer.LANE_WEIGHTS and
+	 * PACKETS_PER_STEP.
+	 *
+	 * @param lane
+	 *            The lane
+	 * @param weight
+	 *            The weight, at least 1
+	 */
+	public void setRIOLaneWeight(int lane, int weight) {
+		RIOLayer.setLaneWeight(lane, weight);
+	}
+
 	/**
 	 * Method that is called by the RIO layer when a message is to be delivered.
 	 * 
@@ -63,6 +173,49 @@ public abstract class RIONode extends Node {
 	public abstract void onRIOReceive(Integer from, int protocol, byte[] msg);
 
     public void onRIODrop(byte[] payload) {}
+
+	/**
+	 * Method that is called by the RIO layer when messages to a peer start
+	 * piling up because the peer is not keeping up, and again once the
+	 * backlog has drained. Nodes that produce bursts of messages can use this
+	 * to hold off. Messages sent while backpressured are still queued and
+	 * delivered.
+	 * 
+	 * @param destAddr
+	 *            The address of the peer
+	 * @param backpressured
+	 *            true if the backlog crossed the threshold, false once it has
+	 *            drained
+	 */
+	public void onRIOBackpressure(int destAddr, boolean backpressured) {}
+
+	/**
+	 * Method that is called by the RIO layer when a quorum of the peers a
+	 * multicast went to have ACKed it.
+	 * 
+	 * @param multicast
+	 *            The multicast, as returned by RIOMulticast
+	 */
+	public void onRIOMulticastQuorum(RIOMulticastRecord multicast) {}
+
+	/**
+	 * Method that is called by the RIO layer when every peer a multicast went
+	 * to has ACKed it. If the quorum is all of them, this is called right
+	 * after onRIOMulticastQuorum.
+	 * 
+	 * @param multicast
+	 *            The multicast, as returned by RIOMulticast
+	 */
+	public void onRIOMulticastComplete(RIOMulticastRecord multicast) {}
+
+	/**
+	 * @param destAddr
+	 *            The address of the peer
+	 * @return true if messages to the peer are currently backlogged
+	 */
+	public boolean isRIOBackpressured(int destAddr) {
+		return RIOLayer.isBackpressured(destAddr);
+	}
 	
 	@Override
 	public String toString() {
@@ -72,4 +225,41 @@ public abstract class RIONode extends Node {
   long getUUID() {
     return uuid;
   }
+
+  // only for picking up a session from a checkpoint
+  void setUUID(long uuid) {
+    this.uuid = uuid;
+  }
+
+	/**
+	 * @param addr
+	 *            The address of a peer
+	 * @return true if we know the peer's current session
+	 */
+	public boolean hasPeerSession(int addr) {
+		return PeerTable.isValidAddress(addr) && hasPeerSession[addr];
+	}
+
+	/**
+	 * @param addr
+	 *            The address of a peer
+	 * @return The peer's current session. Only meaningful if hasPeerSession
+	 *         is true.
+	 */
+	public long getPeerSession(int addr) {
+		return peerSessions[addr];
+	}
+
+	/**
+	 * Record the current session of a peer.
+	 * 
+	 * @param addr
+	 *            The address of the peer
+	 * @param session
+	 *            The peer's session
+	 */
+	public void setPeerSession(int addr, long session) {
+		peerSessions[addr] = session;
+		hasPeerSession[addr] = true;
+	}
 }
@@ -1,8 +1,7 @@
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import edu.washington.cs.cse490h.lib.Packet;
 import edu.washington.cs.cse490h.lib.Utility;
@@ -11,18 +10,50 @@ import edu.washington.cs.cse490h.lib.Utility;
  * This conveys the header for reliable, in-order message transfer. This is
  * carried in the payload of a Packet, and in turn the data being transferred is
  * carried in the payload of the RIOPacket packet.
+ * 
+ * A RIOPacket produced by unpack is a view over the received bytes: the
+ * payload is only copied out if getPayload is called. A RIOPacket that has
+ * been packed keeps its encoded form around, so resends only patch the header
+ * fields that changed instead of encoding the packet again.
  */
 public class RIOPacket {
 
 	public static final int MAX_PACKET_SIZE = Packet.MAX_PAYLOAD_SIZE;
-	public static final int HEADER_SIZE = 13;
+	public static final int HEADER_SIZE = 26;
 	public static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADER_SIZE;
 
+	// offsets of the header fields in the encoded form
+	private static final int SEQ_NUM_OFFSET = 1;
+	private static final int SESSION_ID_OFFSET = 5;
+	private static final int EPOCH_OFFSET = 13;
+	private static final int BASE_SEQ_NUM_OFFSET = 21;
+	private static final int LANE_OFFSET = 25;
+
 	private int protocol;
 	private int seqNum;
+    // session of the receiver, or 0 if the sender does not know it yet
     private long sessionId;
+    // session of the sender
+    private long epoch;
+    // first sequence number of the channel this packet belongs to
+    private int baseSeqNum;
+    // the stream to the peer the packet belongs to; each has its own
+    // sequence numbers
+    private int lane;
 	private byte[] payload;
     public int numResends;
+    // time step at which the packet was last put on the wire
+    public long timeSent;
+    // for a fragment, the whole message it was cut from
+    byte[] fragmentOf;
+
+	// where the payload lives if it has not been copied out yet
+	private byte[] payloadSource;
+	private int payloadOffset;
+	private int payloadLength;
+
+	// cached encoded form, kept in sync with the header fields
+	private byte[] encoded;
 
 	/**
 	 * Constructing a new RIO packet.
@@ -31,15 +62,26 @@ public class RIOPacket {
 	 * @param payload The payload of the packet.
 	 */
 	public RIOPacket(int protocol, int seqNum, long sessionId, byte[] payload) throws IllegalArgumentException {
-		if (!Protocol.isRIOProtocolValid(protocol) || payload.length > MAX_PAYLOAD_SIZE) {
+		this(protocol, seqNum, sessionId, payload, 0, payload.length);
+		this.payload = payload;
+	}
+
+	/**
+	 * Constructing a RIO packet whose payload is a region of a larger array.
+	 * The array is referenced, not copied.
+	 */
+	private RIOPacket(int protocol, int seqNum, long sessionId, byte[] source, int offset, int length) throws IllegalArgumentException {
+		if (!Protocol.isRIOProtocolValid(protocol) || length > MAX_PAYLOAD_SIZE) {
 			throw new IllegalArgumentException("Illegal arguments given to RIOPacket");
 		}
 
 		this.protocol = protocol;
 		this.seqNum = seqNum;
-		this.payload = payload;
         this.sessionId = sessionId;
         this.numResends = 0;
+		this.payloadSource = source;
+		this.payloadOffset = offset;
+		this.payloadLength = length;
 	}
 
 	/**
@@ -57,89 +99,206 @@ public class RIOPacket {
 	}
 
 	/**
-	 * @return The session Id
+	 * @return The session Id of the receiver this was sent to, or 0 if the
+	 *         sender did not know it
 	 */
 	public long getSessionId() {
 		return this.sessionId;
 	}
 
 	/**
-	 * @return The payload
+	 * @return The session of the sender
+	 */
+	public long getEpoch() {
+		return this.epoch;
+	}
+
+	/**
+	 * @return The sequence number the sender's channel starts at
+	 */
+	public int getBaseSeqNum() {
+		return this.baseSeqNum;
+	}
+
+	/**
+	 * @return The lane the packet was sent on
+	 */
+	public int getLane() {
+		return this.lane;
+	}
+
+	/**
+	 * @return The payload. For an unpacked packet this copies the payload out
+	 *         of the received bytes the first time it is called.
 	 */
 	public byte[] getPayload() {
+		if (this.payload == null) {
+			this.payload = Arrays.copyOfRange(payloadSource, payloadOffset, payloadOffset + payloadLength);
+		}
 		return this.payload;
 	}
 
+	/**
+	 * @return A read-only view of the payload that does not copy it
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.wrap(payloadSource, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The length of the payload in bytes
+	 */
+	public int getPayloadLength() {
+		return this.payloadLength;
+	}
+
+	/**
+	 * @return The number of bytes pack will produce for this packet
+	 */
+	public int getPackedSize() {
+		return HEADER_SIZE + payloadLength;
+	}
+
     public void setSessionId(long id) {
         this.sessionId = id;
+        if (encoded != null) {
+            ByteBuffer.wrap(encoded).putLong(SESSION_ID_OFFSET, id);
+        }
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+        if (encoded != null) {
+            ByteBuffer.wrap(encoded).putLong(EPOCH_OFFSET, epoch);
+        }
+    }
+
+    public void setBaseSeqNum(int num) {
+        this.baseSeqNum = num;
+        if (encoded != null) {
+            ByteBuffer.wrap(encoded).putInt(BASE_SEQ_NUM_OFFSET, num);
+        }
+    }
+
+    public void setLane(int lane) {
+        this.lane = lane;
+        if (encoded != null) {
+            encoded[LANE_OFFSET] = (byte) lane;
+        }
     }
 
     public void setSeqNum(int num) {
       this.seqNum = num;
+      if (encoded != null) {
+          ByteBuffer.wrap(encoded).putInt(SEQ_NUM_OFFSET, num);
+      }
     }
 
 	/**
-	 * Convert the RIOPacket packet object into a byte array for sending over the wire.
+	 * Write the RIOPacket into a caller-provided buffer, starting at its
+	 * position. The buffer's position is advanced past the packet.
 	 * Format:
 	 *        protocol = 1 byte
 	 *        sequence number = 4 bytes
+	 *        session id = 8 bytes
+	 *        epoch = 8 bytes
+	 *        base sequence number = 4 bytes
+	 *        lane = 1 byte
 	 *        payload <= MAX_PAYLOAD_SIZE bytes
-	 * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
+	 * @param buf The buffer to write to. Must have getPackedSize() bytes remaining.
 	 */
-	public byte[] pack() {
-		try {
-			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			DataOutputStream out = new DataOutputStream(byteStream);
-
-			out.writeByte(protocol);
-			out.writeInt(seqNum);
-
-			out.writeLong(sessionId);
-
-			out.write(payload, 0, payload.length);
+	public void pack(ByteBuffer buf) {
+		buf.put((byte) protocol);
+		buf.putInt(seqNum);
+		buf.putLong(sessionId);
+		buf.putLong(epoch);
+		buf.putInt(baseSeqNum);
+		buf.put((byte) lane);
+		buf.put(payloadSource, payloadOffset, payloadLength);
+	}
 
-			out.flush();
-			out.close();
-			return byteStream.toByteArray();
-		} catch (IOException e) {
-			return null;
+	/**
+	 * Convert the RIOPacket packet object into a byte array for sending over
+	 * the wire, in the format described in pack(ByteBuffer). The array
+	 * returned is owned by the caller; the packet keeps its own copy of the
+	 * encoded form for later resends.
+	 * @return A byte[] for transporting over the wire
+	 */
+	public byte[] pack() {
+		if (encoded == null) {
+			encoded = new byte[getPackedSize()];
+			pack(ByteBuffer.wrap(encoded));
 		}
+		return encoded.clone();
 	}
 
 	/**
-	 * Unpacks a byte array to create a RIOPacket object
+	 * Unpacks a byte array to create a RIOPacket object. The returned packet
+	 * is a view over the given array, which must not be modified afterwards.
 	 * Assumes the array has been formatted using pack method in RIOPacket
 	 * @param packet String representation of the transport packet
 	 * @return RIOPacket object created or null if the byte[] representation was corrupted
 	 */
 	public static RIOPacket unpack(byte[] packet) {
-		try {
-			DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet));
-
-			int protocol = in.readByte();
-			int seqNum = in.readInt();
-			long sessionId = in.readLong();
+		if (packet.length < HEADER_SIZE) {
+			return null;
+		}
 
-			byte[] payload = new byte[packet.length - HEADER_SIZE];
-			int bytesRead = in.read(payload, 0, payload.length);
+		try {
+			ByteBuffer in = ByteBuffer.wrap(packet);
 
-			if (bytesRead != payload.length) {
-				return null;
-			}
+			int protocol = in.get();
+			int seqNum = in.getInt();
+			long sessionId = in.getLong();
 
-			return new RIOPacket(protocol, seqNum, sessionId, payload);
+			RIOPacket pkt = new RIOPacket(protocol, seqNum, sessionId, packet, HEADER_SIZE, packet.length - HEADER_SIZE);
+			pkt.epoch = in.getLong();
+			pkt.baseSeqNum = in.getInt();
+			pkt.lane = in.get() & 0xFF;
+			return pkt;
 		} catch (IllegalArgumentException e) {
 			// will return null
-		} catch(IOException e) {
-			// will return null
 		}
 		return null;
 	}
 
+	/**
+	 * Split a RIO_BATCH packet into the messages it carries, in the order they
+	 * were added to the batch (see RIOBatch for the format). The messages are
+	 * views over this packet's payload and share its sequence number and
+	 * session.
+	 * 
+	 * @return The messages, or null if the batch is corrupted
+	 */
+	public List<RIOPacket> unbatch() {
+		List<RIOPacket> msgs = new ArrayList<RIOPacket>();
+		int pos = payloadOffset;
+		int end = payloadOffset + payloadLength;
+		try {
+			while (pos < end) {
+				if (end - pos < RIOBatch.FRAME_HEADER_SIZE) {
+					return null;
+				}
+				ByteBuffer in = ByteBuffer.wrap(payloadSource, pos, RIOBatch.FRAME_HEADER_SIZE);
+				int msgProtocol = in.get();
+				int length = in.getInt();
+				pos += RIOBatch.FRAME_HEADER_SIZE;
+				if (length < 0 || length > end - pos || msgProtocol == Protocol.RIO_BATCH) {
+					return null;
+				}
+				msgs.add(new RIOPacket(msgProtocol, seqNum, sessionId, payloadSource, pos, length));
+				pos += length;
+			}
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		return msgs;
+	}
+
 	/**
 	 * String representation of a RIOPacket
 	 */
 	public String toString() {
-		return "rio-proto:" + this.protocol + " rio-seqNum:" + this.seqNum + "rio-session:" + this.sessionId + " rio-payload:" + Utility.byteArrayToString(this.payload); 
+		return "rio-proto:" + this.protocol + " rio-seqNum:" + this.seqNum + " rio-session:" + this.sessionId + " rio-epoch:" + this.epoch + " rio-lane:" + this.lane + " rio-payload:" + Utility.byteArrayToString(getPayload()); 
 	}
 }
@@ -11,7 +11,8 @@ import edu.washington.cs.cse490h.lib.Utility;
  * continues until we send at least 100 messages to another node.
  */
 public class RIOTester extends RIONode {
-	// The RIO layer is not correct in the presence of node failures.
+	// The tester keeps its counts in memory, so it cannot survive node
+	// failures even with a durable RIO layer (see RIONode.setRIODurable).
 	public static double getFailureRate() { return 0/100.0; }
 	public static double getDropRate() { return 25/100.0; }
 	public static double getDelayRate() { return 50/100.0; }
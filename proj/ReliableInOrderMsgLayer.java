@@ -1,8 +1,7 @@
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.util.*;
 
-import edu.washington.cs.cse490h.lib.Callback;
-import edu.washington.cs.cse490h.lib.Utility;
+import edu.washington.cs.cse490h.lib.TimeoutHandle;
 
 /**
  * Layer above the basic messaging layer that provides reliable, in-order
@@ -11,19 +10,115 @@ import edu.washington.cs.cse490h.lib.Utility;
  * 
  * At a minimum, the student should extend/modify this layer to provide
  * reliable, in-order message delivery, even in the presence of node failures.
+ * 
+ * Every incarnation of a node has its own session. Each DATA packet carries
+ * the sender's session (its epoch), the receiver's session as far as the
+ * sender knows it, and the sequence number the sender's channel starts at, so
+ * the first packet to arrive sets up the channel without a separate
+ * handshake. A receiver that gets a packet meant for an earlier session of
+ * its own announces its current session, and the sender replays whatever is
+ * unACKed to it straight away, keeping the same sequence numbers.
+ * 
+ * Messages to a peer go on one of several lanes, picked by protocol (see
+ * Protocol.getDefaultLane and setLane). Each lane is a channel of its own with
+ * its own sequence numbers, so a large transfer on one lane does not hold up
+ * the messages on another; order is only kept within a lane. A LaneScheduler
+ * per peer decides which lane's packets go out first, in proportion to the
+ * lane weights, and how many at most per time step (PACKETS_PER_STEP).
+ * 
+ * In durable mode the layer also checkpoints its state to storage (see
+ * RIOCheckpoint), so a node that restarts keeps its session and carries on
+ * where its channels left off, and a message is delivered once even if either
+ * end crashes. Checkpoints are group committed: every change made within
+ * CHECKPOINT_DELAY time steps goes into one write. Nothing may depend on a
+ * change before it is written, so new packets are held back, and ACKs only
+ * cover deliveries, until the checkpoint that records them. A node that
+ * crashes before then gets the messages it had not checkpointed again.
  */
 public class ReliableInOrderMsgLayer {
+	// initial retransmission timeout, used until we have measured the RTT
 	public static int TIMEOUT = 5;
+
+	// bounds on the adaptive retransmission timeout
+	public static int MIN_TIMEOUT = 2;
+	public static int MAX_TIMEOUT = 64;
+
+	// default number of unACKed packets we allow in flight to a single peer
+	public static int WINDOW_SIZE = 32;
+
+	// the receiver ACKs immediately once this many packets are unACKed,
+	// otherwise it waits DELAYED_ACK_TIMEOUT so one ACK covers the batch
+	public static int ACK_FREQUENCY = 4;
+	public static int DELAYED_ACK_TIMEOUT = 1;
+
+	// with batching on, messages to a peer are held for BATCH_DELAY time steps,
+	// or until MAX_BATCH_SIZE bytes are waiting, and then sent in one packet
+	public static boolean BATCHING = false;
+	public static int BATCH_DELAY = 1;
+	public static int MAX_BATCH_SIZE = 1024;
+
+	// largest packed RIOPacket we send. Larger messages are split into
+	// fragments that are ACKed and resent individually.
+	public static int MTU = 1400;
+
+	// largest message we send or put back together from fragments. A
+	// fragment header that claims more is treated as corrupted.
+	public static int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	// number of packets a receiver buffers while waiting for a gap to be
+	// filled. Packets further ahead are dropped and have to be resent.
+	public static int REORDER_WINDOW = 64;
+
+	// a peer counts as backpressured once this many messages are queued
+	// behind a full window, and stops counting once half of them have gone out
+	public static int BACKPRESSURE_THRESHOLD = 64;
+
+	// in durable mode, how many time steps changes are collected for before
+	// they are written out in one checkpoint
+	public static int CHECKPOINT_DELAY = 1;
+
+	// how many new packets go out to a peer per time step, over all lanes, or
+	// 0 for no limit. Retransmissions are not counted.
+	public static int PACKETS_PER_STEP = 0;
+
+	// default share of the sending each lane gets, by lane
+	public static int[] LANE_WEIGHTS = { 4, 2, 1 };
 	
-	private HashMap<Integer, InChannel> inConnections;
-	private HashMap<Integer, OutChannel> outConnections;
-	private HashMap<Integer, Integer> sessionsWaiting;
+	// per-lane state, indexed by lane and then by address
+	private List<PeerTable<InChannel>> inConnections;
+	private List<PeerTable<OutChannel>> outConnections;
+
+	// per-peer state, indexed by address
+	private PeerTable<RTTEstimator> rttEstimators;
+	private PeerTable<LaneScheduler> schedulers;
+
+	// lane of each protocol, and the weight of each lane
+	private int[] lanes;
+	private int[] laneWeights;
+
+	// sessions each peer has left behind, most recent first
+	private PeerTable<long[]> retiredSessions;
+	// time step at which we last announced our session to each peer
+	private long[] lastAnnounced;
+	// window size for each peer, or 0 for the default
+	private int[] windowSizes;
+	private boolean batching;
 	private RIONode n;
 
+	// number of multicasts sent so far, used for their ids
+	private int numMulticasts;
+
+	// the state last written to storage in durable mode, or null, and the
+	// timer for the next write
+	private RIOCheckpoint checkpoint;
+	private TimeoutHandle checkpointTimer;
+
     // how many resends before we give up
     public static final int NUM_RESENDS = 5;
 
-    public static final int MAX_SESSION_RESENDS = 4;
+    // how many old sessions of a peer we remember, so that stragglers from
+    // them are not mistaken for a new session
+    public static final int RETIRED_SESSIONS = 4;
 
 	/**
 	 * Constructor.
@@ -36,9 +131,30 @@ public class ReliableInOrderMsgLayer {
 	 *            The time that the ping was sent
 	 */
 	public ReliableInOrderMsgLayer(RIONode n) {
-		inConnections = new HashMap<Integer, InChannel>();
-		outConnections = new HashMap<Integer, OutChannel>();
-		sessionsWaiting = new HashMap<Integer, Integer>();
+		inConnections = new ArrayList<PeerTable<InChannel>>();
+		outConnections = new ArrayList<PeerTable<OutChannel>>();
+		for (int lane = 0; lane < Protocol.NUM_LANES; lane++) {
+			inConnections.add(new PeerTable<InChannel>());
+			outConnections.add(new PeerTable<OutChannel>());
+		}
+		rttEstimators = new PeerTable<RTTEstimator>();
+		schedulers = new PeerTable<LaneScheduler>();
+		lanes = new int[Protocol.MAX_PROTOCOL + 1];
+		for (int protocol = 0; protocol <= Protocol.MAX_PROTOCOL; protocol++) {
+			lanes[protocol] = Protocol.getDefaultLane(protocol);
+		}
+		laneWeights = new int[Protocol.NUM_LANES];
+		for (int lane = 0; lane < Protocol.NUM_LANES; lane++) {
+			laneWeights[lane] = lane < LANE_WEIGHTS.length ? Math.max(1, LANE_WEIGHTS[lane]) : 1;
+		}
+		retiredSessions = new PeerTable<long[]>();
+		lastAnnounced = new long[PeerTable.MAX_ADDRESS + 1];
+		Arrays.fill(lastAnnounced, -1);
+		windowSizes = new int[PeerTable.MAX_ADDRESS + 1];
+		batching = BATCHING;
+		checkpoint = null;
+		checkpointTimer = null;
+		numMulticasts = 0;
 		this.n = n;
 	}
 	
@@ -53,48 +169,184 @@ public class ReliableInOrderMsgLayer {
 	public void RIODataReceive(int from, byte[] msg) {
 
 		RIOPacket riopkt = RIOPacket.unpack(msg);
+		if (riopkt == null) {
+			// corrupted
+			return;
+		}
 
-        // if the UUID is incorrect, then initiate a new session
-        if (riopkt.getSessionId() != n.getUUID()) {
-            //System.out.println("Bad id, sending session setup " + n.addr);
-
-            // clean up
-			inConnections.put(from, new InChannel());
-            if (outConnections.get(from) != null)
-                outConnections.put(from, new OutChannel(this, from));
-
-            String tmp = "" + n.getUUID();
-            n.send(from, Protocol.INITIATE_SESSION, tmp.getBytes());
-
-            // mark that we're waiting on an ACK
-            sessionsWaiting.put(from, 0);
-
-            // add callback for resends
-            try {
-                Method onTimeoutMethod = Callback.getMethod("onTimeoutSession", this,
-                    new String[]{ "java.lang.Integer", "java.lang.Long" });
-                n.addTimeout(new Callback(onTimeoutMethod, this,
-                    new Object[]{ from, n.getUUID() }), ReliableInOrderMsgLayer.TIMEOUT);
-            } catch (Exception e) {}
-        } else {
-            InChannel in = inConnections.get(from);
-            if(in == null) {
-                in = new InChannel();
-                inConnections.put(from, in);
-            }
+		if (!updatePeerSession(from, riopkt.getEpoch())) {
+			// a straggler from a session the peer has left behind
+			return;
+		}
 
-            // send off an ACK
-            byte[] ackNum = Utility.stringToByteArray("" + riopkt.getSeqNum());
-            n.send(from, Protocol.ACK, ackNum);
-        
-            if (riopkt.getSessionId() == n.getUUID()) {
-                LinkedList<RIOPacket> toBeDelivered = in.gotPacket(riopkt);
-                for(RIOPacket p: toBeDelivered) {
-                    // deliver in-order the next sequence of packets
-                    n.onRIOReceive(from, p.getProtocol(), p.getPayload());
-                }
-            }
-        }
+		long session = riopkt.getSessionId();
+		if (session != 0 && session != n.getUUID()) {
+			// meant for an earlier session of ours. Tell the sender about
+			// this one so it can replay its window to us.
+			announceSession(from);
+			return;
+		}
+
+		int lane = riopkt.getLane();
+		if (lane >= Protocol.NUM_LANES) {
+			// corrupted
+			return;
+		}
+		InChannel in = inConnections.get(lane).get(from);
+		if (in == null || in.getEpoch() != riopkt.getEpoch()) {
+			// the first packet we see on this lane from this session of the
+			// peer sets up the channel, starting where the sender says it starts
+			in = new InChannel(riopkt.getEpoch(), lane, riopkt.getBaseSeqNum());
+			if (isDurable()) {
+				in.setLastSeqNumCheckpointed(riopkt.getBaseSeqNum() - 1);
+			}
+			replaceInChannel(from, in);
+		}
+
+		boolean inOrder = in.gotPacket(riopkt);
+
+		// ACK right away when the sender needs to hear about a gap or
+		// a duplicate, otherwise let one cumulative ACK cover a batch
+		if (!inOrder || in.getUnACKedCount() >= ACK_FREQUENCY) {
+			sendACK(from, in);
+		} else if (!in.isAckTimerArmed()) {
+			armDelayedACK(from, in);
+		}
+
+		RIOPacket p;
+		while ((p = in.poll()) != null) {
+			// deliver in-order the next sequence of packets
+			n.onRIOReceive(from, p.getProtocol(), p.getPayload());
+		}
+		if (isDurable() && in.getLastSeqNumDelivered() > in.getLastSeqNumCheckpointed()) {
+			requestCheckpoint();
+		}
+	}
+
+	/**
+	 * Keep track of the session of a peer. A session we have not seen before
+	 * means the peer has restarted, unless we did not know its session yet.
+	 * In that case what we sent to its old session is replayed to the new one,
+	 * and the channel from its old session is closed.
+	 * 
+	 * @param from
+	 *            The address of the peer
+	 * @param session
+	 *            A session the peer claims to be in
+	 * @return false if the peer has already left that session behind
+	 */
+	private boolean updatePeerSession(int from, long session) {
+		if (n.hasPeerSession(from) && n.getPeerSession(from) == session) {
+			return true;
+		}
+
+		long[] retired = retiredSessions.get(from);
+		if (retired == null) {
+			retired = new long[RETIRED_SESSIONS];
+			retiredSessions.put(from, retired);
+		}
+		for (long old : retired) {
+			if (old == session && old != 0) {
+				return false;
+			}
+		}
+
+		boolean restarted = n.hasPeerSession(from);
+		if (restarted) {
+			System.arraycopy(retired, 0, retired, 1, retired.length - 1);
+			retired[0] = n.getPeerSession(from);
+		}
+		n.setPeerSession(from, session);
+
+		if (restarted) {
+			for (int lane = 0; lane < Protocol.NUM_LANES; lane++) {
+				InChannel in = inConnections.get(lane).remove(from);
+				if (in != null) {
+					in.close();
+				}
+				OutChannel out = outConnections.get(lane).get(from);
+				if (out != null) {
+					out.replay(n);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tell a peer which session we are in. This is at most once per time step,
+	 * since a whole window of packets for our old session may arrive at once.
+	 * 
+	 * @param to
+	 *            The address of the peer
+	 */
+	private void announceSession(int to) {
+		if (lastAnnounced[to] == n.now()) {
+			return;
+		}
+		lastAnnounced[to] = n.now();
+		n.send(to, Protocol.INITIATE_SESSION, RIOControlFrame.packSession(n.getUUID()));
+	}
+
+	/**
+	 * Send a cumulative ACK for an incoming channel, followed by the ranges of
+	 * sequence numbers that are buffered out of order.
+	 * 
+	 * @param from
+	 *            The address of the peer whose packets we are ACKing
+	 * @param in
+	 *            The incoming channel from that peer
+	 */
+	private void sendACK(int from, InChannel in) {
+		int delivered = in.getLastSeqNumDelivered();
+		int cumulativeAck = Math.min(delivered, in.getLastSeqNumCheckpointed());
+		List<int[]> ranges = in.getSelectiveRanges();
+		if (cumulativeAck < delivered) {
+			// delivered but not checkpointed yet. SACKing these keeps the
+			// sender from resending them while it holds on to them.
+			ranges = new ArrayList<int[]>(ranges);
+			ranges.add(0, new int[]{ cumulativeAck + 1, delivered });
+		}
+		byte[] ack = RIOControlFrame.packAck(n.getUUID(), in.getEpoch(), in.getLane(), cumulativeAck,
+				in.getAdvertisedWindow() + delivered - cumulativeAck, ranges);
+		in.ackSent();
+		n.send(from, Protocol.ACK, ack);
+	}
+
+	/**
+	 * Start the delayed ACK timer of an incoming channel. The timer is
+	 * cancelled if an ACK goes out before it fires.
+	 * 
+	 * @param from
+	 *            The address of the peer whose packets we owe an ACK for
+	 * @param in
+	 *            The incoming channel from that peer
+	 */
+	private void armDelayedACK(final int from, final InChannel in) {
+		in.setAckTimer(n.addTimer(new Runnable() {
+			public void run() {
+				in.setAckTimer(null);
+				if (in.getUnACKedCount() > 0) {
+					sendACK(from, in);
+				}
+			}
+		}, DELAYED_ACK_TIMEOUT));
+	}
+
+	/**
+	 * Start over with a fresh incoming channel from a peer on the channel's
+	 * lane, cancelling the timers of the old one.
+	 * 
+	 * @param from
+	 *            The address of the peer
+	 * @param in
+	 *            The new channel
+	 */
+	private void replaceInChannel(int from, InChannel in) {
+		InChannel old = inConnections.get(in.getLane()).put(from, in);
+		if (old != null) {
+			old.close();
+		}
 	}
 	
 	/**
@@ -106,42 +358,43 @@ public class ReliableInOrderMsgLayer {
 	 *            The Packet of data
 	 */
 	public void RIOAckReceive(int from, byte[] msg) {
-        if (outConnections.get(from) != null) {
-            int seqNum = Integer.parseInt( Utility.byteArrayToString(msg) );
-            outConnections.get(from).gotACK(seqNum);
+        RIOControlFrame ack = RIOControlFrame.unpackAck(msg);
+        if (ack == null) {
+            // corrupted or from an incompatible version
+            return;
         }
-	}
-
-	public void RIOSessionReceive(int from, byte[] msg) {
 
-        // we need to start a new session...
-        
-        // set id
-        long id = Long.parseLong( Utility.byteArrayToString(msg) );
-        n.peerSessions.put(from, id);
-
-        //System.out.println("Got a new session " + n.addr + " " + id
-        //    + "...");
-
-        // renumber in-flight packets
-        if (outConnections.get(from) != null) {
-            outConnections.get(from).resetSequence(id);
+        if (!updatePeerSession(from, ack.getEpoch()) || ack.getAckedEpoch() != n.getUUID()) {
+            // from or for a session that is over
+            return;
         }
 
-        // and restart in channel
-        inConnections.put(from, new InChannel());
-
-        // send ack with out UUID
-        byte[] sessionIdByteArray = Utility.stringToByteArray("" + n.getUUID());
-        n.send(from, Protocol.ACK_SESSION, sessionIdByteArray);
+        if (ack.getLane() >= Protocol.NUM_LANES) {
+            return;
+        }
+        OutChannel out = outConnections.get(ack.getLane()).get(from);
+        if (out != null) {
+            out.gotACK(n, ack.getCumulativeAck(), ack.getWindow(), ack.getRanges());
+        }
 	}
 
-	public void RIOSessionAck(int from, byte[] msg) {
-        long id = Long.parseLong( Utility.byteArrayToString(msg) );
-        if (sessionsWaiting.get(from) != null) {
-            sessionsWaiting.remove(from);
+	/**
+	 * Receive a session announcement, which a peer sends when we address a
+	 * session of it that is over.
+	 * 
+	 * @param from
+	 *            The address of the peer
+	 * @param msg
+	 *            The session frame
+	 */
+	public void RIOSessionReceive(int from, byte[] msg) {
+        long id;
+        try {
+            id = RIOControlFrame.unpackSession(msg);
+        } catch (IllegalArgumentException e) {
+            return;
         }
-        n.peerSessions.put(from, id);
+        updatePeerSession(from, id);
 	}
 
 	/**
@@ -154,260 +407,1550 @@ public class ReliableInOrderMsgLayer {
 	 *            The protocol identifier for the packet
 	 * @param payload
 	 *            The payload to be sent
+	 * @throws IllegalArgumentException
+	 *             If the payload is larger than MAX_MESSAGE_SIZE
 	 */
 	public int RIOSend(int destAddr, int protocol, byte[] payload) {
-		OutChannel out = outConnections.get(destAddr);
-		if(out == null) {
-			out = new OutChannel(this, destAddr);
-			outConnections.put(destAddr, out);
-		}
+		checkMessageSize(payload);
+		OutChannel out = getOutChannel(destAddr, getLane(protocol));
 		
 		return out.sendRIOPacket(n, protocol, payload);
 	}
 
+	private static void checkMessageSize(byte[] payload) {
+		if (payload.length > MAX_MESSAGE_SIZE) {
+			throw new IllegalArgumentException("Message too big: " + payload.length + " bytes");
+		}
+	}
+
 	/**
-	 * Callback for timeouts while waiting for an ACK.
-	 * 
-	 * This method is here and not in OutChannel because OutChannel is not a
-	 * public class.
+	 * Get the outgoing channel to a peer on a lane, setting it up if there is
+	 * none yet.
 	 * 
 	 * @param destAddr
-	 *            The receiving node of the unACKed packet
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
-	 */
-	public void onTimeout(Integer destAddr, Integer seqNum) {
-		outConnections.get(destAddr).onTimeout(n, seqNum);
-	}
-
-	public void onTimeoutSession(Integer addr, Long sessionNum) {
-        if (sessionsWaiting.get(addr) != null) {
-            if (sessionsWaiting.get(addr) < MAX_SESSION_RESENDS) {
-                // if we're still awaiting a session by now, then resend
-                byte[] sessionIdByteArray = Utility.stringToByteArray("" + sessionNum);
-                n.send(addr, Protocol.INITIATE_SESSION, sessionIdByteArray);
-
-                //System.out.println("Resending session init: " + sessionNum);
-
-                try {
-                    // setup another timeout
-                    Method onTimeoutMethod = Callback.getMethod("onTimeoutSession", this,
-                        new String[]{ "java.lang.Integer", "java.lang.Long" });
-                    n.addTimeout(new Callback(onTimeoutMethod, this, new Object[]
-                        { addr, sessionNum }), ReliableInOrderMsgLayer.TIMEOUT);
-                } catch (Exception e) {}
-            } else {
-                //System.out.println("Drop session init");
-            }
-        }
-	}
-	
-	@Override
-	public String toString() {
-		StringBuffer sb = new StringBuffer();
-		for(Integer i: inConnections.keySet()) {
-			sb.append(inConnections.get(i).toString() + "\n");
+	 *            The address of the peer
+	 * @param lane
+	 *            The lane
+	 * @return The channel
+	 */
+	private OutChannel getOutChannel(int destAddr, int lane) {
+		OutChannel out = outConnections.get(lane).get(destAddr);
+		if(out == null) {
+			out = new OutChannel(this, destAddr, lane);
+			outConnections.get(lane).put(destAddr, out);
 		}
-		
-		return sb.toString();
+		return out;
 	}
-}
 
-/**
- * Representation of an incoming channel to this node
- */
-class InChannel {
-	private int lastSeqNumDelivered;
-	private HashMap<Integer, RIOPacket> outOfOrderMsgs;
+	/**
+	 * @param destAddr
+	 *            The address of the peer
+	 * @param lane
+	 *            The lane
+	 * @return The outgoing channel to the peer on the lane, or null if nothing
+	 *         has been sent on it
+	 */
+	OutChannel findOutChannel(int destAddr, int lane) {
+		return outConnections.get(lane).get(destAddr);
+	}
 
-	InChannel(){
-		lastSeqNumDelivered = -1;
-		outOfOrderMsgs = new HashMap<Integer, RIOPacket>();
+	/**
+	 * @return Every outgoing channel, lane by lane
+	 */
+	private List<OutChannel> getOutChannels() {
+		List<OutChannel> outs = new ArrayList<OutChannel>();
+		for (PeerTable<OutChannel> table : outConnections) {
+			outs.addAll(table.values());
+		}
+		return outs;
 	}
 
-    public void setSeqNum(int num) {
-        lastSeqNumDelivered = num;
-    }
+	/**
+	 * @return Every incoming channel, lane by lane
+	 */
+	private List<InChannel> getInChannels() {
+		List<InChannel> ins = new ArrayList<InChannel>();
+		for (PeerTable<InChannel> table : inConnections) {
+			ins.addAll(table.values());
+		}
+		return ins;
+	}
 
 	/**
-	 * Method called whenever we receive a data packet.
+	 * Send a protocol's messages on a different lane. Messages already sent
+	 * on the old lane may be overtaken by those sent on the new one, so this
+	 * is best done before the first message of the protocol.
 	 * 
-	 * @param pkt
-	 *            The packet
-	 * @return A list of the packets that we can now deliver due to the receipt
-	 *         of this packet
+	 * @param protocol
+	 *            The protocol
+	 * @param lane
+	 *            The lane, below Protocol.NUM_LANES
 	 */
-	public LinkedList<RIOPacket> gotPacket(RIOPacket pkt) {
-		LinkedList<RIOPacket> pktsToBeDelivered = new LinkedList<RIOPacket>();
-		int seqNum = pkt.getSeqNum();
-		
-		if(seqNum == lastSeqNumDelivered + 1) {
-			// We were waiting for this packet
-			pktsToBeDelivered.add(pkt);
-			++lastSeqNumDelivered;
-			deliverSequence(pktsToBeDelivered);
-		}else if(seqNum > lastSeqNumDelivered + 1){
-			// We received a subsequent packet and should store it
-			outOfOrderMsgs.put(seqNum, pkt);
-		} else {
-            //System.out.println("Duplicate dropped " + seqNum + "|" + lastSeqNumDelivered);
-        }
-		// Duplicate packets are ignored
-		
-		return pktsToBeDelivered;
+	public void setLane(int protocol, int lane) {
+		if (protocol < 0 || protocol > Protocol.MAX_PROTOCOL) {
+			throw new IllegalArgumentException("Invalid protocol: " + protocol);
+		}
+		if (lane < 0 || lane >= Protocol.NUM_LANES) {
+			throw new IllegalArgumentException("Invalid lane: " + lane);
+		}
+		lanes[protocol] = lane;
 	}
 
 	/**
-	 * Helper method to grab all the packets we can now deliver.
-	 * 
-	 * @param pktsToBeDelivered
-	 *            List to append to
+	 * @param protocol
+	 *            A RIOPacket protocol
+	 * @return The lane the protocol's messages go on
 	 */
-	private void deliverSequence(LinkedList<RIOPacket> pktsToBeDelivered) {
-		while(outOfOrderMsgs.containsKey(lastSeqNumDelivered + 1)) {
-			++lastSeqNumDelivered;
-			pktsToBeDelivered.add(outOfOrderMsgs.remove(lastSeqNumDelivered));
+	public int getLane(int protocol) {
+		if (protocol < 0 || protocol > Protocol.MAX_PROTOCOL) {
+			throw new IllegalArgumentException("Invalid protocol: " + protocol);
 		}
+		return lanes[protocol];
 	}
 
-    public void dropMessages() {
-        outOfOrderMsgs.clear();
-    }
-	
-	@Override
-	public String toString() {
-		return "last delivered: " + lastSeqNumDelivered + ", outstanding: " + outOfOrderMsgs.size();
+	/**
+	 * Set how big a share of the sending to each peer a lane gets, relative
+	 * to the other lanes. This only matters while more than one lane has
+	 * packets waiting.
+	 * 
+	 * @param lane
+	 *            The lane
+	 * @param weight
+	 *            The weight, at least 1
+	 */
+	public void setLaneWeight(int lane, int weight) {
+		if (lane < 0 || lane >= Protocol.NUM_LANES) {
+			throw new IllegalArgumentException("Invalid lane: " + lane);
+		}
+		if (weight < 1) {
+			throw new IllegalArgumentException("Lane weight must be positive: " + weight);
+		}
+		laneWeights[lane] = weight;
 	}
-}
 
-/**
- * Representation of an outgoing channel to this node
- */
-class OutChannel {
-	private TreeMap<Integer, RIOPacket> unACKedPackets;
-	private int lastSeqNumSent;
-	private ReliableInOrderMsgLayer parent;
-	private int destAddr;
+	public int getLaneWeight(int lane) {
+		return laneWeights[lane];
+	}
 
-	
-	OutChannel(ReliableInOrderMsgLayer parent, int destAddr){
-		lastSeqNumSent = -1;
-		unACKedPackets = new TreeMap<Integer, RIOPacket>();
-		this.parent = parent;
-		this.destAddr = destAddr;
+	/**
+	 * Get the scheduler that shares the sending to a peer between the lanes.
+	 * 
+	 * @param destAddr
+	 *            The address of the peer
+	 * @return The scheduler for the peer
+	 */
+	LaneScheduler getLaneScheduler(int destAddr) {
+		LaneScheduler scheduler = schedulers.get(destAddr);
+		if (scheduler == null) {
+			scheduler = new LaneScheduler(this, destAddr);
+			schedulers.put(destAddr, scheduler);
+		}
+		return scheduler;
 	}
 
-    public void resetSequence(long session) {
-        // renumber unacked packets and reset sequence number
-        TreeMap<Integer, RIOPacket> newPackets = new TreeMap<Integer, RIOPacket>();
-        Iterator it = unACKedPackets.keySet().iterator();
-        int count = 0;
-        while (it.hasNext()) {
-            RIOPacket p = unACKedPackets.get(it.next());
-            p.setSessionId(session);
-            p.setSeqNum(newPackets.size());
-            lastSeqNumSent = newPackets.size();
-            newPackets.put(newPackets.size(), p);
-        }
-    }
-	
 	/**
-	 * Send a new RIOPacket out on this channel.
+	 * Send the same message to several peers. The payload, or its fragments
+	 * if it is too big for one packet, is built once and shared by the
+	 * channels to all of them. The node hears about it through
+	 * onRIOMulticastQuorum and onRIOMulticastComplete as the peers ACK it.
 	 * 
-	 * @param n
-	 *            The sender and parent of this channel
+	 * @param destAddrs
+	 *            The addresses of the peers
 	 * @param protocol
-	 *            The protocol identifier of this packet
+	 *            The protocol identifier for the message
 	 * @param payload
 	 *            The payload to be sent
+	 * @param quorum
+	 *            How many peers have to ACK for a quorum
+	 * @return The record that keeps track of the ACKs
+	 * @throws IllegalArgumentException
+	 *             If there are no peers, one of the addresses is invalid,
+	 *             the quorum is out of range or the payload is larger than
+	 *             MAX_MESSAGE_SIZE
 	 */
-	protected int sendRIOPacket(RIONode n, int protocol, byte[] payload) {
-		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-            long out_uuid = n.getUUID();
-            if (n.peerSessions.get(destAddr) != null) {
-                out_uuid = n.peerSessions.get(destAddr);
-                //System.out.println("Sending to uuid " + out_uuid);
-            } else {
-                //System.out.println("Sending from uuid " + out_uuid);
-            }
-			RIOPacket newPkt = new RIOPacket(protocol, ++lastSeqNumSent, out_uuid, payload);
-			unACKedPackets.put(lastSeqNumSent, newPkt);
-			
-			n.send(destAddr, Protocol.DATA, newPkt.pack());
-
-            //System.out.println("timeout");
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, lastSeqNumSent }), ReliableInOrderMsgLayer.TIMEOUT);
-		}catch(Exception e) {
-			e.printStackTrace();
+	public RIOMulticastRecord RIOMulticast(Set<Integer> destAddrs, int protocol, byte[] payload, int quorum) {
+		checkMessageSize(payload);
+		for (int destAddr : destAddrs) {
+			if (!PeerTable.isValidAddress(destAddr)) {
+				throw new IllegalArgumentException("Invalid address: " + destAddr);
+			}
 		}
-        return lastSeqNumSent;
+		RIOMulticastRecord multicast = new RIOMulticastRecord(numMulticasts, destAddrs, protocol, payload, quorum);
+		numMulticasts++;
+
+		List<byte[]> fragments = null;
+		if (payload.length > RIOFragment.getMaxUnfragmentedSize(MTU)) {
+			fragments = RIOFragment.split(protocol, payload, MTU);
+		}
+		int lane = getLane(protocol);
+		for (int destAddr : multicast.getDestinations()) {
+			OutChannel out = getOutChannel(destAddr, lane);
+			int seqNum;
+			if (fragments == null) {
+				seqNum = out.sendRIOPacket(n, protocol, payload);
+			} else {
+				seqNum = out.sendFragments(n, payload, fragments);
+			}
+			out.addMulticast(multicast, seqNum);
+		}
+		return multicast;
 	}
-	
+
 	/**
-	 * Called when a timeout for this channel triggers
+	 * Called when a peer ACKs a multicast. Tells the node when this makes a
+	 * quorum, and when it was the last peer to ACK.
 	 * 
-	 * @param n
-	 *            The sender and parent of this channel
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
+	 * @param multicast
+	 *            The multicast
+	 * @param from
+	 *            The address of the peer
+	 */
+	void multicastAcked(RIOMulticastRecord multicast, int from) {
+		boolean hadQuorum = multicast.hasQuorum();
+		if (!multicast.acked(from)) {
+			return;
+		}
+		if (!hadQuorum && multicast.hasQuorum()) {
+			n.onRIOMulticastQuorum(multicast);
+		}
+		if (multicast.isComplete()) {
+			n.onRIOMulticastComplete(multicast);
+		}
+	}
+
+	/**
+	 * Set the maximum number of unACKed packets we keep in flight to a peer.
+	 * Packets sent beyond the window are queued until ACKs open it up.
+	 * 
+	 * @param destAddr
+	 *            The address of the peer
+	 * @param windowSize
+	 *            The window size, at least 1
 	 */
-	public void onTimeout(RIONode n, Integer seqNum) {
-		if(unACKedPackets.containsKey(seqNum)) {
-			resendRIOPacket(n, seqNum);
+	public void setWindowSize(int destAddr, int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("Window size must be positive: " + windowSize);
 		}
+		if (!PeerTable.isValidAddress(destAddr)) {
+			throw new IllegalArgumentException("Invalid address: " + destAddr);
+		}
+		windowSizes[destAddr] = windowSize;
+
+		getLaneScheduler(destAddr).run(n);
 	}
 
 	/**
-	 * Called when we get an ACK back. Removes the outstanding packet if it is
-	 * still in unACKedPackets.
+	 * Turn batching of outgoing messages on or off. Turning it off sends any
+	 * messages still being held.
 	 * 
-	 * @param seqNum
-	 *            The sequence number that was just ACKed
+	 * @param batching
+	 *            Whether messages to the same peer should be coalesced
 	 */
-	protected void gotACK(int seqNum) {
-		unACKedPackets.remove(seqNum);
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+		if (!batching) {
+			for (OutChannel out : getOutChannels()) {
+				out.flushBatch(n);
+			}
+		}
+	}
+
+	public boolean isBatching() {
+		return batching;
 	}
 
-    public void setSeq(int s) {
-        lastSeqNumSent = s;
-    }
-	
 	/**
-	 * Resend an unACKed packet.
+	 * Turn durable mode on, picking up from the newest checkpoint in storage
+	 * if there is one, or off. It has to be turned on before any messages are
+	 * sent or received, so from the node's start method.
 	 * 
-	 * @param n
-	 *            The sender and parent of this channel
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
+	 * @param durable
+	 *            Whether to checkpoint the state of the layer
+	 * @throws IllegalStateException
+	 *             If durable mode is turned on after messages have gone
+	 *             through the layer
 	 */
-	private void resendRIOPacket(RIONode n, int seqNum) {
-        //System.out.println("RESEND");
-		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-			RIOPacket riopkt = unACKedPackets.get(seqNum);
-            if (n.peerSessions.get(destAddr) != null) {
-                riopkt.setSessionId(n.peerSessions.get(destAddr));
-            } else {
-                riopkt.setSessionId(n.getUUID());
-            }
+	public void setDurable(boolean durable) {
+		if (durable == isDurable()) {
+			return;
+		}
+		if (!durable) {
+			if (checkpointTimer != null) {
+				checkpointTimer.cancel();
+				checkpointTimer = null;
+			}
+			checkpoint = null;
+			for (InChannel in : getInChannels()) {
+				in.setLastSeqNumCheckpointed(Integer.MAX_VALUE);
+			}
+			for (OutChannel out : getOutChannels()) {
+				out.setLastSeqNumCheckpointed(Integer.MAX_VALUE);
+				out.fillWindow(n);
+			}
+			return;
+		}
 
-            //System.out.println("proto: " + riopkt.getProtocol());
+		if (!getInChannels().isEmpty() || !getOutChannels().isEmpty()) {
+			throw new IllegalStateException("Durable mode has to be turned on before the first message");
+		}
+		checkpoint = RIOCheckpoint.read(n);
+		if (checkpoint == null) {
+			checkpoint = new RIOCheckpoint();
+		} else {
+			restore(checkpoint);
+		}
+	}
 
-            // If we fail to get acked for too long, give up
-            if (riopkt.numResends > ReliableInOrderMsgLayer.NUM_RESENDS) {
-                unACKedPackets.remove(seqNum);
-                n.onRIODrop(riopkt.getPayload());
-                //System.out.println("PACKET DROPPED");
-                return;
-            }
-            riopkt.numResends++;
-			
-            // backoff linearly (2 * num_resends)
-			n.send(destAddr, Protocol.DATA, riopkt.pack());
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, seqNum }), ReliableInOrderMsgLayer.TIMEOUT * riopkt.numResends);
-		}catch(Exception e) {
+	public boolean isDurable() {
+		return checkpoint != null;
+	}
+
+	/**
+	 * Pick up from a checkpoint: take back the session we had, and set the
+	 * channels up as they were. Packets to peers are resent straight away.
+	 * 
+	 * @param cp
+	 *            The checkpoint
+	 */
+	private void restore(RIOCheckpoint cp) {
+		n.setUUID(cp.getSession());
+		for (int addr = 0; addr <= PeerTable.MAX_ADDRESS; addr++) {
+			RIOCheckpoint.Peer peer = cp.getPeer(addr);
+			if (peer == null) {
+				continue;
+			}
+			if (peer.peerSession != 0) {
+				n.setPeerSession(addr, peer.peerSession);
+			}
+			for (RIOCheckpoint.In saved : peer.ins) {
+				if (saved.lane >= Protocol.NUM_LANES) {
+					continue;
+				}
+				InChannel in = new InChannel(saved.epoch, saved.lane, saved.lastSeqNumDelivered + 1);
+				for (RIOPacket fragment : saved.pendingFragments) {
+					in.gotPacket(fragment);
+				}
+				// hands the fragments to the reassembler. They are not a whole
+				// message, so nothing comes out.
+				in.poll();
+				in.setLastSeqNumCheckpointed(in.getLastSeqNumDelivered());
+				inConnections.get(saved.lane).put(addr, in);
+			}
+			for (RIOCheckpoint.Out saved : peer.outs) {
+				if (saved.lane >= Protocol.NUM_LANES) {
+					continue;
+				}
+				OutChannel out = getOutChannel(addr, saved.lane);
+				out.restore(n, saved.baseSeqNum, saved.lastSeqNumSent, saved.packets);
+			}
+		}
+	}
+
+	/**
+	 * Schedule a checkpoint, unless one is already coming up. Everything that
+	 * changes until it is written goes into the same checkpoint.
+	 */
+	void requestCheckpoint() {
+		if (!isDurable() || checkpointTimer != null) {
+			return;
+		}
+		checkpointTimer = n.addTimer(new Runnable() {
+			public void run() {
+				checkpointTimer = null;
+				writeCheckpoint();
+			}
+		}, CHECKPOINT_DELAY);
+	}
+
+	/**
+	 * Write the state of every channel to storage, then release what was
+	 * waiting for it: ACKs for the deliveries it covers, and the packets it
+	 * holds that have not been sent yet.
+	 */
+	private void writeCheckpoint() {
+		checkpoint.clear();
+		checkpoint.setSession(n.getUUID());
+		for (int lane = 0; lane < Protocol.NUM_LANES; lane++) {
+			for (int addr = 0; addr <= PeerTable.MAX_ADDRESS; addr++) {
+				InChannel in = inConnections.get(lane).get(addr);
+				OutChannel out = outConnections.get(lane).get(addr);
+				if (in == null && out == null) {
+					continue;
+				}
+				RIOCheckpoint.Peer peer = checkpoint.addPeer(addr);
+				peer.peerSession = n.hasPeerSession(addr) ? n.getPeerSession(addr) : 0;
+				if (in != null) {
+					RIOCheckpoint.In saved = new RIOCheckpoint.In();
+					saved.lane = lane;
+					saved.epoch = in.getEpoch();
+					saved.lastSeqNumDelivered = in.getLastSeqNumComplete();
+					saved.pendingFragments.addAll(in.getPendingFragments());
+					peer.ins.add(saved);
+				}
+				if (out != null) {
+					RIOCheckpoint.Out saved = new RIOCheckpoint.Out();
+					saved.lane = lane;
+					saved.baseSeqNum = out.getBaseSeqNum();
+					saved.lastSeqNumSent = out.getLastSeqNumSent();
+					saved.packets.addAll(out.getPendingPackets());
+					peer.outs.add(saved);
+				}
+			}
+		}
+
+		try {
+			checkpoint.write(n);
+		} catch (IOException e) {
+			// keep holding everything back and try again
 			e.printStackTrace();
+			requestCheckpoint();
+			return;
+		}
+
+		for (int lane = 0; lane < Protocol.NUM_LANES; lane++) {
+			for (int addr = 0; addr <= PeerTable.MAX_ADDRESS; addr++) {
+				InChannel in = inConnections.get(lane).get(addr);
+				if (in != null && in.getLastSeqNumDelivered() > in.getLastSeqNumCheckpointed()) {
+					in.setLastSeqNumCheckpointed(in.getLastSeqNumDelivered());
+					sendACK(addr, in);
+				}
+				OutChannel out = outConnections.get(lane).get(addr);
+				if (out != null) {
+					out.setLastSeqNumCheckpointed(out.getLastSeqNumSent());
+				}
+			}
+		}
+		for (int addr = 0; addr <= PeerTable.MAX_ADDRESS; addr++) {
+			LaneScheduler scheduler = schedulers.get(addr);
+			if (scheduler != null) {
+				scheduler.run(n);
+			}
+		}
+	}
+
+	/**
+	 * @param destAddr
+	 *            The address of the peer
+	 * @return true if so many messages to the peer are queued waiting for
+	 *         room in its window that the sender should slow down
+	 */
+	public boolean isBackpressured(int destAddr) {
+		for (PeerTable<OutChannel> table : outConnections) {
+			OutChannel out = table.get(destAddr);
+			if (out != null && out.isBackpressured()) {
+				return true;
+			}
 		}
+		return false;
+	}
+
+	/**
+	 * @param destAddr
+	 *            The address of the peer
+	 * @return The window size used for the peer
+	 */
+	public int getWindowSize(int destAddr) {
+		int windowSize = PeerTable.isValidAddress(destAddr) ? windowSizes[destAddr] : 0;
+		return windowSize == 0 ? WINDOW_SIZE : windowSize;
+	}
+
+	/**
+	 * Get the round trip time estimator for a peer. It outlives the channels
+	 * to the peer, since it describes the path rather than a session.
+	 * 
+	 * @param destAddr
+	 *            The address of the peer
+	 * @return The estimator for the peer
+	 */
+	RTTEstimator getRTTEstimator(int destAddr) {
+		RTTEstimator rtt = rttEstimators.get(destAddr);
+		if (rtt == null) {
+			rtt = new RTTEstimator();
+			rttEstimators.put(destAddr, rtt);
+		}
+		return rtt;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for(InChannel in: getInChannels()) {
+			sb.append(in.toString() + "\n");
+		}
+		
+		return sb.toString();
+	}
+}
+
+/**
+ * Representation of an incoming channel to this node. Packets that arrive
+ * ahead of a gap wait in a circular reorder buffer indexed by sequence number
+ * modulo its capacity. Packets too far ahead to fit are dropped; the ACK that
+ * follows tells the sender what is missing, and it will send them again.
+ */
+class InChannel {
+	// session of the sender this channel belongs to, and the lane it is on
+	private long epoch;
+	private int lane;
+	private int lastSeqNumDelivered;
+
+	// reorder buffer. Slot seqNum & mask holds packet seqNum for every
+	// sequence number from nextToPoll up to nextToPoll + capacity - 1. Packets
+	// up to lastSeqNumDelivered are in order and wait only to be polled.
+	private RIOPacket[] window;
+	private int mask;
+	private int nextToPoll;
+	private int numOutOfOrder;
+	private int highestSeqNumBuffered;
+
+	// messages of a batch that is being polled, and the next one to hand out
+	private List<RIOPacket> batchMsgs;
+	private int batchIndex;
+
+	// the message whose fragments are being polled
+	private RIOFragment.Reassembler reassembler;
+
+	// the last packet polled that did not leave part of a message behind,
+	// and the fragments polled since
+	private int lastSeqNumComplete;
+	private List<RIOPacket> pendingFragments;
+
+	// in durable mode, the sequence number up to which deliveries have been
+	// checkpointed. ACKs go no further.
+	private int lastSeqNumCheckpointed;
+
+	// packets received since our last ACK, and the pending delayed ACK if any
+	private int unACKedCount;
+	private TimeoutHandle ackTimer;
+
+	/**
+	 * @param epoch
+	 *            The session of the sender
+	 * @param lane
+	 *            The lane of the channel
+	 * @param baseSeqNum
+	 *            The first sequence number of the channel
+	 */
+	InChannel(long epoch, int lane, int baseSeqNum) {
+		this(epoch, lane, baseSeqNum, ReliableInOrderMsgLayer.REORDER_WINDOW);
+	}
+
+	/**
+	 * @param epoch
+	 *            The session of the sender
+	 * @param lane
+	 *            The lane of the channel
+	 * @param baseSeqNum
+	 *            The first sequence number of the channel
+	 * @param capacity
+	 *            How many packets the reorder buffer holds. Rounded up to a
+	 *            power of two.
+	 */
+	InChannel(long epoch, int lane, int baseSeqNum, int capacity) {
+		this.lane = lane;
+		int size = Integer.highestOneBit(Math.max(capacity, 1));
+		if (size < capacity) {
+			size <<= 1;
+		}
+		window = new RIOPacket[size];
+		mask = size - 1;
+		this.epoch = epoch;
+		lastSeqNumDelivered = baseSeqNum - 1;
+		nextToPoll = baseSeqNum;
+		numOutOfOrder = 0;
+		highestSeqNumBuffered = baseSeqNum - 1;
+		batchMsgs = null;
+		reassembler = null;
+		lastSeqNumComplete = baseSeqNum - 1;
+		pendingFragments = new ArrayList<RIOPacket>();
+		lastSeqNumCheckpointed = Integer.MAX_VALUE;
+		unACKedCount = 0;
+		ackTimer = null;
+	}
+
+    public void setSeqNum(int num) {
+        dropMessages();
+        Arrays.fill(window, null);
+        batchMsgs = null;
+        reassembler = null;
+        pendingFragments.clear();
+        lastSeqNumComplete = num;
+        lastSeqNumDelivered = num;
+        nextToPoll = num + 1;
+    }
+
+	/**
+	 * @return The session of the sender
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public int getLane() {
+		return lane;
+	}
+
+	/**
+	 * @return The sequence number up to which everything has been delivered
+	 */
+	public int getLastSeqNumDelivered() {
+		return lastSeqNumDelivered;
+	}
+
+	/**
+	 * @return The sequence number up to which every message has been handed
+	 *         out by poll, leaving out the fragments of a partial message
+	 */
+	public int getLastSeqNumComplete() {
+		return lastSeqNumComplete;
+	}
+
+	/**
+	 * @return The fragments handed to the reassembler after
+	 *         getLastSeqNumComplete, in order
+	 */
+	public List<RIOPacket> getPendingFragments() {
+		return pendingFragments;
+	}
+
+	public int getLastSeqNumCheckpointed() {
+		return lastSeqNumCheckpointed;
+	}
+
+	public void setLastSeqNumCheckpointed(int seqNum) {
+		lastSeqNumCheckpointed = seqNum;
+	}
+
+	/**
+	 * Method called whenever we receive a data packet. The packets that can
+	 * be delivered as a result are then taken out with poll, in order.
+	 * 
+	 * @param pkt
+	 *            The packet
+	 * @return true if the packet let delivery move forward, false if it was
+	 *         a duplicate, out of order or beyond the reorder buffer
+	 */
+	public boolean gotPacket(RIOPacket pkt) {
+		int seqNum = pkt.getSeqNum();
+		unACKedCount++;
+
+		if (seqNum <= lastSeqNumDelivered) {
+			// Duplicate packets are ignored
+			return false;
+		}
+		if (seqNum - nextToPoll > mask) {
+			// no room to buffer it; the sender will resend it
+			return false;
+		}
+
+		int slot = seqNum & mask;
+		if (seqNum != lastSeqNumDelivered + 1) {
+			// We received a subsequent packet and should store it
+			if (window[slot] == null) {
+				window[slot] = pkt;
+				numOutOfOrder++;
+				highestSeqNumBuffered = Math.max(highestSeqNumBuffered, seqNum);
+			}
+			return false;
+		}
+
+		// We were waiting for this packet. Everything buffered right after it
+		// is now in order too.
+		window[slot] = pkt;
+		++lastSeqNumDelivered;
+		while (numOutOfOrder > 0 && window[(lastSeqNumDelivered + 1) & mask] != null) {
+			++lastSeqNumDelivered;
+			numOutOfOrder--;
+		}
+		return true;
+	}
+
+	/**
+	 * Take out the next message that is ready to be delivered. A batch is
+	 * handed out one message at a time, and a fragmented message once all of
+	 * its fragments are in.
+	 * 
+	 * @return The message, or null if there is nothing left to deliver
+	 */
+	public RIOPacket poll() {
+		if (batchMsgs != null) {
+			RIOPacket msg = batchMsgs.get(batchIndex++);
+			if (batchIndex == batchMsgs.size()) {
+				batchMsgs = null;
+			}
+			return msg;
+		}
+
+		while (nextToPoll <= lastSeqNumDelivered) {
+			int slot = nextToPoll & mask;
+			RIOPacket pkt = window[slot];
+			window[slot] = null;
+			nextToPoll++;
+
+			if (pkt.getProtocol() == Protocol.RIO_FRAGMENT) {
+				if (reassembler == null) {
+					reassembler = new RIOFragment.Reassembler(ReliableInOrderMsgLayer.MAX_MESSAGE_SIZE);
+				}
+				if (RIOFragment.isFirst(pkt)) {
+					// the reassembler drops whatever came before
+					lastSeqNumComplete = pkt.getSeqNum() - 1;
+					pendingFragments.clear();
+				}
+				pendingFragments.add(pkt);
+				RIOPacket whole = reassembler.add(pkt);
+				if (whole != null) {
+					lastSeqNumComplete = pkt.getSeqNum();
+					pendingFragments.clear();
+					return whole;
+				}
+				continue;
+			}
+			lastSeqNumComplete = pkt.getSeqNum();
+			pendingFragments.clear();
+			if (pkt.getProtocol() != Protocol.RIO_BATCH) {
+				return pkt;
+			}
+			// a corrupted batch is dropped
+			List<RIOPacket> msgs = pkt.unbatch();
+			if (msgs != null && !msgs.isEmpty()) {
+				if (msgs.size() > 1) {
+					batchMsgs = msgs;
+					batchIndex = 1;
+				}
+				return msgs.get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The contiguous ranges [start, end] of sequence numbers that we
+	 *         hold beyond the cumulative ACK point, in ascending order
+	 */
+	public List<int[]> getSelectiveRanges() {
+		if (numOutOfOrder == 0) {
+			return Collections.emptyList();
+		}
+		List<int[]> ranges = new ArrayList<int[]>();
+		int[] current = null;
+		for (int seqNum = lastSeqNumDelivered + 2; seqNum <= highestSeqNumBuffered; seqNum++) {
+			if (window[seqNum & mask] == null) {
+				current = null;
+			} else if (current != null) {
+				current[1] = seqNum;
+			} else {
+				current = new int[]{ seqNum, seqNum };
+				ranges.add(current);
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * @return How many sequence numbers past the last one delivered we have
+	 *         room to buffer
+	 */
+	public int getAdvertisedWindow() {
+		return nextToPoll + mask - lastSeqNumDelivered;
+	}
+
+	public int getUnACKedCount() {
+		return unACKedCount;
+	}
+
+	/**
+	 * Called whenever an ACK goes out. A pending delayed ACK is no longer
+	 * needed, so its timer is cancelled.
+	 */
+	public void ackSent() {
+		unACKedCount = 0;
+		cancelAckTimer();
+	}
+
+	public boolean isAckTimerArmed() {
+		return ackTimer != null;
+	}
+
+	public void setAckTimer(TimeoutHandle timer) {
+		ackTimer = timer;
+	}
+
+	private void cancelAckTimer() {
+		if (ackTimer != null) {
+			ackTimer.cancel();
+			ackTimer = null;
+		}
+	}
+
+	/**
+	 * Cancel the timers of this channel, once it has been replaced.
+	 */
+	public void close() {
+		cancelAckTimer();
+	}
+
+	/**
+	 * Forget the packets buffered out of order.
+	 */
+    public void dropMessages() {
+        for (int seqNum = lastSeqNumDelivered + 2; seqNum <= highestSeqNumBuffered; seqNum++) {
+            window[seqNum & mask] = null;
+        }
+        numOutOfOrder = 0;
+        highestSeqNumBuffered = lastSeqNumDelivered;
+    }
+	
+	@Override
+	public String toString() {
+		return "epoch: " + epoch + ", lane: " + lane + ", last delivered: " + lastSeqNumDelivered + ", outstanding: " + numOutOfOrder;
+	}
+}
+
+/**
+ * Representation of an outgoing channel to this node. Keeps up to a window's
+ * worth of packets in flight and queues the rest. The window is the smaller of
+ * our own window size and the room the peer last advertised. A single
+ * retransmission timer covers the whole window.
+ */
+class OutChannel {
+	private TreeMap<Integer, RIOPacket> unACKedPackets;
+	// packets the peer has selectively ACKed but not yet cumulatively. They
+	// are not resent, but are kept in case the peer restarts and loses them.
+	private TreeMap<Integer, RIOPacket> sackedPackets;
+	private LinkedList<RIOPacket> queuedPackets;
+	private int lastSeqNumSent;
+	// first sequence number sent to the peer's current session
+	private int baseSeqNum;
+	private ReliableInOrderMsgLayer parent;
+	private int destAddr;
+	private int lane;
+
+	// the retransmission timer, or null when nothing is in flight. It is
+	// restarted whenever the window moves.
+	private TimeoutHandle retransmitTimer;
+
+	// messages held back to be sent together, and the timer that flushes them
+	private RIOBatch batch;
+	private TimeoutHandle batchTimer;
+
+	// highest sequence number the peer has room for, as of the newest ACK
+	private int peerCumulativeAck;
+	private int peerWindowLimit;
+	private boolean backpressured;
+
+	// the fragmented message we last reported as dropped
+	private byte[] lastDroppedMessage;
+
+	// in durable mode, packets after this one are held back until a
+	// checkpoint records them, so a sequence number never goes out twice
+	private int lastSeqNumCheckpointed;
+
+	// multicasts waiting for the peer to ACK them, in sequence number order,
+	// and the sequence number each one has to be ACKed up to
+	private LinkedList<RIOMulticastRecord> multicasts;
+	private LinkedList<Integer> multicastSeqNums;
+	
+	OutChannel(ReliableInOrderMsgLayer parent, int destAddr, int lane){
+		lastSeqNumSent = -1;
+		baseSeqNum = 0;
+		unACKedPackets = new TreeMap<Integer, RIOPacket>();
+		sackedPackets = new TreeMap<Integer, RIOPacket>();
+		queuedPackets = new LinkedList<RIOPacket>();
+		this.parent = parent;
+		this.destAddr = destAddr;
+		this.lane = lane;
+		retransmitTimer = null;
+		batch = null;
+		batchTimer = null;
+		resetPeerWindow();
+		backpressured = false;
+		lastSeqNumCheckpointed = parent.isDurable() ? lastSeqNumSent : Integer.MAX_VALUE;
+		multicasts = new LinkedList<RIOMulticastRecord>();
+		multicastSeqNums = new LinkedList<Integer>();
+	}
+
+	/**
+	 * Set the channel up as a checkpoint left it. Everything it held is
+	 * queued to be sent again.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param baseSeqNum
+	 *            The first sequence number sent to the peer's session
+	 * @param lastSeqNumSent
+	 *            The last sequence number handed out
+	 * @param packets
+	 *            The packets that were not ACKed, in order
+	 */
+	protected void restore(RIONode n, int baseSeqNum, int lastSeqNumSent, List<RIOPacket> packets) {
+		this.baseSeqNum = baseSeqNum;
+		this.lastSeqNumSent = lastSeqNumSent;
+		lastSeqNumCheckpointed = lastSeqNumSent;
+		resetPeerWindow();
+		queuedPackets.addAll(packets);
+		fillWindow(n);
+	}
+
+	public int getBaseSeqNum() {
+		return baseSeqNum;
+	}
+
+	public int getLastSeqNumSent() {
+		return lastSeqNumSent;
+	}
+
+	/**
+	 * @return Every packet that has not been cumulatively ACKed, whether it
+	 *         is in flight, SACKed or queued, in sequence number order
+	 */
+	public List<RIOPacket> getPendingPackets() {
+		TreeMap<Integer, RIOPacket> inFlight = new TreeMap<Integer, RIOPacket>(unACKedPackets);
+		inFlight.putAll(sackedPackets);
+		List<RIOPacket> packets = new ArrayList<RIOPacket>(inFlight.values());
+		packets.addAll(queuedPackets);
+		return packets;
+	}
+
+	public void setLastSeqNumCheckpointed(int seqNum) {
+		lastSeqNumCheckpointed = seqNum;
+	}
+
+	/**
+	 * Assume the peer has a default-sized reorder buffer until it tells us
+	 * otherwise.
+	 */
+	private void resetPeerWindow() {
+		peerCumulativeAck = baseSeqNum - 1;
+		peerWindowLimit = peerCumulativeAck + ReliableInOrderMsgLayer.REORDER_WINDOW;
+	}
+
+	/**
+	 * Called when the peer has restarted. Its new session starts at the
+	 * oldest packet it has not ACKed, and everything unACKed is sent to it
+	 * again right away rather than waiting for the retransmission timer.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	protected void replay(RIONode n) {
+		unACKedPackets.putAll(sackedPackets);
+		sackedPackets.clear();
+		if (!unACKedPackets.isEmpty()) {
+			baseSeqNum = unACKedPackets.firstKey();
+		} else if (!queuedPackets.isEmpty()) {
+			baseSeqNum = queuedPackets.getFirst().getSeqNum();
+		} else {
+			baseSeqNum = lastSeqNumSent + 1;
+		}
+		resetPeerWindow();
+
+		RTTEstimator rtt = parent.getRTTEstimator(destAddr);
+		for (RIOPacket riopkt : unACKedPackets.values()) {
+			transmit(n, riopkt);
+		}
+		if (!unACKedPackets.isEmpty()) {
+			armTimer(n, rtt.getTimeout());
+		}
+		fillWindow(n);
+	}
+	
+	/**
+	 * Send a new RIOPacket out on this channel. If the window is full, the
+	 * packet is queued until ACKs make room for it.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param protocol
+	 *            The protocol identifier of this packet
+	 * @param payload
+	 *            The payload to be sent
+	 * @return The sequence number assigned to the packet, or to its last
+	 *         fragment if it had to be fragmented
+	 */
+	protected int sendRIOPacket(RIONode n, int protocol, byte[] payload) {
+		int mtu = ReliableInOrderMsgLayer.MTU;
+		if (payload.length > RIOFragment.getMaxUnfragmentedSize(mtu)) {
+			return sendFragments(n, payload, RIOFragment.split(protocol, payload, mtu));
+		}
+		if (parent.isBatching()) {
+			return addToBatch(n, protocol, payload);
+		}
+		RIOPacket newPkt = new RIOPacket(protocol, ++lastSeqNumSent, 0, payload);
+		queuedPackets.add(newPkt);
+		fillWindow(n);
+        return lastSeqNumSent;
+	}
+
+	/**
+	 * Wait for the peer to ACK a multicast message that has been sent on this
+	 * channel.
+	 * 
+	 * @param multicast
+	 *            The multicast
+	 * @param seqNum
+	 *            The sequence number of the packet that completes the message
+	 */
+	protected void addMulticast(RIOMulticastRecord multicast, int seqNum) {
+		multicasts.add(multicast);
+		multicastSeqNums.add(seqNum);
+	}
+
+	/**
+	 * Send a message that has already been cut into fragments. The fragment
+	 * payloads are not copied, so they can be shared with other channels.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param message
+	 *            The whole message
+	 * @param fragments
+	 *            The payloads of its fragments, from RIOFragment.split
+	 * @return The sequence number assigned to the last fragment
+	 */
+	protected int sendFragments(RIONode n, byte[] message, List<byte[]> fragments) {
+		flushBatch(n);
+		for (byte[] data : fragments) {
+			RIOPacket fragment = new RIOPacket(Protocol.RIO_FRAGMENT, ++lastSeqNumSent, 0, data);
+			fragment.fragmentOf = message;
+			queuedPackets.add(fragment);
+		}
+		fillWindow(n);
+		return lastSeqNumSent;
+	}
+
+	/**
+	 * Hold a message back so it goes out in the same packet as the other
+	 * messages sent to the peer around the same time. The batch is sent once
+	 * it reaches MAX_BATCH_SIZE bytes, or when the batch timer fires.
+	 * 
+	 * @return The sequence number the batch will be sent with
+	 */
+	private int addToBatch(final RIONode n, int protocol, byte[] payload) {
+		if (batch == null) {
+			batch = new RIOBatch(ReliableInOrderMsgLayer.MAX_BATCH_SIZE);
+		}
+		if (!batch.isEmpty() && batch.getSize() + RIOBatch.FRAME_HEADER_SIZE
+				+ payload.length > RIOFragment.getMaxUnfragmentedSize(ReliableInOrderMsgLayer.MTU)) {
+			flushBatch(n);
+		}
+		batch.add(protocol, payload);
+		int seqNum = lastSeqNumSent + 1;
+
+		if (batch.getSize() >= ReliableInOrderMsgLayer.MAX_BATCH_SIZE) {
+			flushBatch(n);
+		} else if (batchTimer == null) {
+			batchTimer = n.addTimer(new Runnable() {
+				public void run() {
+					batchTimer = null;
+					flushBatch(n);
+				}
+			}, ReliableInOrderMsgLayer.BATCH_DELAY);
+		}
+		return seqNum;
+	}
+
+	/**
+	 * Send the messages held back in the batch, if any, as one packet.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	protected void flushBatch(RIONode n) {
+		if (batchTimer != null) {
+			batchTimer.cancel();
+			batchTimer = null;
+		}
+		if (batch == null || batch.isEmpty()) {
+			return;
+		}
+		queuedPackets.add(batch.toPacket(++lastSeqNumSent));
+		batch.clear();
+		fillWindow(n);
+	}
+
+	/**
+	 * Move queued packets into flight while there is room in the window, as
+	 * far as the peer's lane scheduler lets this channel.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	protected void fillWindow(RIONode n) {
+		parent.getLaneScheduler(destAddr).run(n);
+
+		if ((!unACKedPackets.isEmpty() || !sackedPackets.isEmpty()) && retransmitTimer == null) {
+			armTimer(n, parent.getRTTEstimator(destAddr).getTimeout());
+		}
+		updateBackpressure(n);
+	}
+
+	/**
+	 * @return true if the next queued packet can go into flight now
+	 */
+	protected boolean canSendNext() {
+		if (queuedPackets.isEmpty()
+				|| unACKedPackets.size() + sackedPackets.size() >= parent.getWindowSize(destAddr)) {
+			return false;
+		}
+		// with nothing in flight, one packet goes out even if the peer
+		// has no room, so its ACK can tell us when the window reopens
+		if (queuedPackets.getFirst().getSeqNum() > peerWindowLimit
+				&& !unACKedPackets.isEmpty()) {
+			return false;
+		}
+		if (queuedPackets.getFirst().getSeqNum() > lastSeqNumCheckpointed) {
+			parent.requestCheckpoint();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Put the next queued packet into flight. Only call this when
+	 * canSendNext says so.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	protected void sendNext(RIONode n) {
+		RIOPacket pkt = queuedPackets.removeFirst();
+		unACKedPackets.put(pkt.getSeqNum(), pkt);
+		transmit(n, pkt);
+		if (retransmitTimer == null) {
+			armTimer(n, parent.getRTTEstimator(destAddr).getTimeout());
+		}
+		updateBackpressure(n);
+	}
+
+	public int getLane() {
+		return lane;
+	}
+
+	/**
+	 * Tell the node when the queue behind the window crosses the
+	 * backpressure threshold, in either direction.
+	 */
+	private void updateBackpressure(RIONode n) {
+		int threshold = ReliableInOrderMsgLayer.BACKPRESSURE_THRESHOLD;
+		if (!backpressured && queuedPackets.size() >= threshold) {
+			backpressured = true;
+			n.onRIOBackpressure(destAddr, true);
+		} else if (backpressured && queuedPackets.size() <= threshold / 2) {
+			backpressured = false;
+			n.onRIOBackpressure(destAddr, false);
+		}
+	}
+
+	public boolean isBackpressured() {
+		return backpressured;
+	}
+
+	/**
+	 * Put a packet on the wire, stamped with our session, the peer's current
+	 * session if we know it, and where the channel starts.
+	 */
+	private void transmit(RIONode n, RIOPacket pkt) {
+		pkt.setSessionId(n.hasPeerSession(destAddr) ? n.getPeerSession(destAddr) : 0);
+		pkt.setEpoch(n.getUUID());
+		pkt.setBaseSeqNum(baseSeqNum);
+		pkt.setLane(lane);
+		pkt.timeSent = n.now();
+		n.send(destAddr, Protocol.DATA, pkt.pack());
+	}
+
+	/**
+	 * (Re)start the retransmission timer.
+	 */
+	private void armTimer(final RIONode n, int timeout) {
+		cancelTimer();
+		retransmitTimer = n.addTimer(new Runnable() {
+			public void run() {
+				retransmitTimer = null;
+				onTimeout(n);
+			}
+		}, timeout);
+	}
+
+	private void cancelTimer() {
+		if (retransmitTimer != null) {
+			retransmitTimer.cancel();
+			retransmitTimer = null;
+		}
+	}
+
+	/**
+	 * Cancel the timers of this channel, once it has been replaced.
+	 */
+	public void close() {
+		cancelTimer();
+		if (batchTimer != null) {
+			batchTimer.cancel();
+			batchTimer = null;
+		}
+	}
+	
+	/**
+	 * Called when the retransmission timer for this channel triggers
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	public void onTimeout(RIONode n) {
+		if (!sackedPackets.isEmpty()
+				&& (unACKedPackets.isEmpty() || sackedPackets.firstKey() < unACKedPackets.firstKey())) {
+			// the oldest packet the peer has not ACKed is one it said it had,
+			// so it has lost what it held out of order, e.g. by restarting
+			// from a checkpoint
+			unACKedPackets.putAll(sackedPackets);
+			sackedPackets.clear();
+		}
+		if (unACKedPackets.isEmpty()) {
+			return;
+		}
+
+		resendUnACKed(n);
+	}
+
+	/**
+	 * Called when we get an ACK back. Stops resending every packet covered by
+	 * the cumulative ACK or by one of the selective ranges, then refills the
+	 * window. Only the cumulative ACK lets us forget packets for good, and
+	 * the retransmission timer keeps running until it covers everything. The
+	 * most recently sent of the newly ACKed packets gives an RTT sample,
+	 * unless it was retransmitted (Karn's rule), since then we cannot tell
+	 * which transmission is being ACKed.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param cumulativeAck
+	 *            All sequence numbers up to and including this one were received
+	 * @param window
+	 *            How many sequence numbers past the cumulative ACK the peer
+	 *            has room for
+	 * @param ranges
+	 *            Ranges [start, end] received beyond the cumulative ACK
+	 */
+	protected void gotACK(RIONode n, int cumulativeAck, int window, List<int[]> ranges) {
+		int outstanding = unACKedPackets.size();
+
+		// an ACK that was overtaken by a newer one may advertise a stale window
+		boolean windowOpened = false;
+		if (cumulativeAck >= peerCumulativeAck) {
+			windowOpened = cumulativeAck + window > peerWindowLimit;
+			peerCumulativeAck = cumulativeAck;
+			peerWindowLimit = cumulativeAck + window;
+		}
+		RIOPacket newest = null;
+
+		newest = newestSample(unACKedPackets.headMap(cumulativeAck, true).values(), newest);
+		unACKedPackets.headMap(cumulativeAck, true).clear();
+		sackedPackets.headMap(cumulativeAck, true).clear();
+		while (!multicasts.isEmpty() && multicastSeqNums.getFirst() <= cumulativeAck) {
+			multicastSeqNums.removeFirst();
+			parent.multicastAcked(multicasts.removeFirst(), destAddr);
+		}
+		for (int[] range : ranges) {
+			if (range[0] <= range[1]) {
+				SortedMap<Integer, RIOPacket> acked = unACKedPackets.subMap(range[0], true, range[1], true);
+				newest = newestSample(acked.values(), newest);
+				sackedPackets.putAll(acked);
+				acked.clear();
+			}
+		}
+
+		RTTEstimator rtt = parent.getRTTEstimator(destAddr);
+		if (newest != null) {
+			rtt.addSample(n.now() - newest.timeSent);
+		}
+
+		if (!ranges.isEmpty()) {
+			resendHoles(n, ranges.get(ranges.size() - 1)[1], rtt);
+		}
+
+		if (unACKedPackets.size() != outstanding) {
+			if (unACKedPackets.isEmpty() && sackedPackets.isEmpty()) {
+				cancelTimer();
+			} else {
+				armTimer(n, rtt.getTimeout());
+			}
+			fillWindow(n);
+		} else if (windowOpened) {
+			fillWindow(n);
+		}
+	}
+
+	/**
+	 * Helper to find the most recently sent packet that was never resent.
+	 * 
+	 * @param packets
+	 *            The packets to look through
+	 * @param newest
+	 *            The best candidate so far, or null
+	 * @return The best candidate, or null if there is none
+	 */
+	private static RIOPacket newestSample(Collection<RIOPacket> packets, RIOPacket newest) {
+		for (RIOPacket p : packets) {
+			if (p.numResends == 0 && (newest == null || p.timeSent > newest.timeSent)) {
+				newest = p;
+			}
+		}
+		return newest;
+	}
+
+    public void setSeq(int s) {
+        lastSeqNumSent = s;
+    }
+	
+	/**
+	 * Resend the packets the peer has skipped over, without waiting for the
+	 * retransmission timer. A packet counts as lost once the peer has received
+	 * something sent after it and it has been in flight for longer than the
+	 * smoothed RTT.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param highestSACKed
+	 *            The highest sequence number the peer has received
+	 * @param rtt
+	 *            The RTT estimator for the peer
+	 */
+	private void resendHoles(RIONode n, int highestSACKed, RTTEstimator rtt) {
+		for (RIOPacket riopkt : unACKedPackets.headMap(highestSACKed).values()) {
+			if (n.now() - riopkt.timeSent >= rtt.getSmoothedRTT()
+					&& riopkt.numResends <= ReliableInOrderMsgLayer.NUM_RESENDS) {
+				riopkt.numResends++;
+				transmit(n, riopkt);
+			}
+		}
+	}
+
+	/**
+	 * Tell the node about each message in a packet we gave up on. A
+	 * fragmented message is reported once, however many of its fragments are
+	 * given up on.
+	 */
+	private void dropped(RIONode n, RIOPacket riopkt) {
+		if (riopkt.getProtocol() == Protocol.RIO_FRAGMENT) {
+			// a fragment restored from a checkpoint no longer knows its
+			// message, and the node that sent it is gone anyway
+			if (riopkt.fragmentOf != null && riopkt.fragmentOf != lastDroppedMessage) {
+				lastDroppedMessage = riopkt.fragmentOf;
+				n.onRIODrop(riopkt.fragmentOf);
+			}
+			return;
+		}
+		if (riopkt.getProtocol() != Protocol.RIO_BATCH) {
+			n.onRIODrop(riopkt.getPayload());
+			return;
+		}
+		List<RIOPacket> msgs = riopkt.unbatch();
+		if (msgs != null) {
+			for (RIOPacket msg : msgs) {
+				n.onRIODrop(msg.getPayload());
+			}
+		}
+	}
+
+	/**
+	 * Resend every packet in the window that has not been ACKed, giving up on
+	 * any that have been resent too many times.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	private void resendUnACKed(RIONode n) {
+        //System.out.println("RESEND");
+		Iterator<RIOPacket> iter = unACKedPackets.values().iterator();
+		while (iter.hasNext()) {
+			RIOPacket riopkt = iter.next();
+
+            // If we fail to get acked for too long, give up
+            if (riopkt.numResends > ReliableInOrderMsgLayer.NUM_RESENDS) {
+                iter.remove();
+                dropped(n, riopkt);
+                //System.out.println("PACKET DROPPED");
+                continue;
+            }
+            riopkt.numResends++;
+
+			transmit(n, riopkt);
+		}
+
+		if (unACKedPackets.isEmpty()) {
+			fillWindow(n);
+		} else {
+			// backoff exponentially until the RTT estimator gets a clean sample
+			RTTEstimator rtt = parent.getRTTEstimator(destAddr);
+			rtt.backoff();
+			armTimer(n, rtt.getTimeout());
+		}
+	}
+}
+
+/**
+ * Shares the sending to one peer between its lanes, by weighted round robin:
+ * each lane in turn sends up to its weight in new packets, or until it has
+ * nothing more it can send, before the next lane gets a go. With
+ * PACKETS_PER_STEP set, at most that many new packets go to the peer per time
+ * step; the scheduler stops where it was and carries on the next step.
+ * Retransmissions skip the scheduler.
+ */
+class LaneScheduler {
+	private ReliableInOrderMsgLayer parent;
+	private int destAddr;
+
+	// the lane whose turn it is, and how many packets it may still send
+	private int current;
+	private int credit;
+
+	// the step the budget is being counted for, and what was sent in it
+	private long step;
+	private int sentThisStep;
+
+	// wakes the scheduler in the next step once the budget is used up
+	private TimeoutHandle budgetTimer;
+	private boolean running;
+
+	LaneScheduler(ReliableInOrderMsgLayer parent, int destAddr) {
+		this.parent = parent;
+		this.destAddr = destAddr;
+		current = 0;
+		credit = parent.getLaneWeight(0);
+		step = -1;
+		sentThisStep = 0;
+		budgetTimer = null;
+		running = false;
+	}
+
+	/**
+	 * Send whatever the lanes to the peer can send now, within the budget.
+	 * 
+	 * @param n
+	 *            The sender
+	 */
+	void run(final RIONode n) {
+		if (running) {
+			// sending from a lane got us here again; the outer run goes on
+			return;
+		}
+		running = true;
+		try {
+			if (n.now() != step) {
+				step = n.now();
+				sentThisStep = 0;
+			}
+			int limit = ReliableInOrderMsgLayer.PACKETS_PER_STEP;
+			// turns in a row in which no lane sent anything
+			int idle = 0;
+			boolean sentThisTurn = false;
+			while (idle < Protocol.NUM_LANES) {
+				OutChannel out = parent.findOutChannel(destAddr, current);
+				if (credit > 0 && out != null && out.canSendNext()) {
+					if (limit > 0 && sentThisStep >= limit) {
+						armBudgetTimer(n);
+						return;
+					}
+					out.sendNext(n);
+					sentThisStep++;
+					credit--;
+					sentThisTurn = true;
+				} else {
+					idle = sentThisTurn ? 0 : idle + 1;
+					sentThisTurn = false;
+					current = (current + 1) % Protocol.NUM_LANES;
+					credit = parent.getLaneWeight(current);
+				}
+			}
+		} finally {
+			running = false;
+		}
+	}
+
+	private void armBudgetTimer(final RIONode n) {
+		if (budgetTimer != null) {
+			return;
+		}
+		budgetTimer = n.addTimer(new Runnable() {
+			public void run() {
+				budgetTimer = null;
+				LaneScheduler.this.run(n);
+			}
+		}, 1);
+	}
+}
+
+/**
+ * Per-peer round trip time estimation and retransmission timeout, following
+ * Jacobson/Karels: a smoothed RTT and RTT variance are updated from each
+ * sample, and the timeout doubles on every expiry until a new sample arrives.
+ * All times are in time steps.
+ */
+class RTTEstimator {
+	// gains for the smoothed RTT and the RTT variance
+	private static final double ALPHA = 1 / 8.0;
+	private static final double BETA = 1 / 4.0;
+
+	private double srtt;
+	private double rttvar;
+	private boolean hasSample;
+	private int backoffs;
+
+	RTTEstimator() {
+		hasSample = false;
+		backoffs = 0;
+	}
+
+	/**
+	 * Fold in a new RTT measurement. This also clears any backoff.
+	 * 
+	 * @param rtt
+	 *            The measured round trip time
+	 */
+	void addSample(long rtt) {
+		if (!hasSample) {
+			srtt = rtt;
+			rttvar = rtt / 2.0;
+			hasSample = true;
+		} else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+			srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+		}
+		backoffs = 0;
+	}
+
+	/**
+	 * Double the timeout, up to MAX_TIMEOUT.
+	 */
+	void backoff() {
+		if (getTimeout() < ReliableInOrderMsgLayer.MAX_TIMEOUT) {
+			backoffs++;
+		}
+	}
+
+	/**
+	 * @return The smoothed RTT, or the initial timeout if there are no samples
+	 */
+	double getSmoothedRTT() {
+		return hasSample ? srtt : ReliableInOrderMsgLayer.TIMEOUT;
+	}
+
+	/**
+	 * @return The current retransmission timeout, including any backoff
+	 */
+	int getTimeout() {
+		int timeout = ReliableInOrderMsgLayer.TIMEOUT;
+		if (hasSample) {
+			// the variance term is at least one time step, the clock granularity
+			timeout = (int) Math.ceil(srtt + Math.max(1, 4 * rttvar));
+		}
+		timeout = Math.max(ReliableInOrderMsgLayer.MIN_TIMEOUT, timeout);
+
+		long backedOff = (long) timeout << Math.min(backoffs, 30);
+		return (int) Math.min(backedOff, ReliableInOrderMsgLayer.MAX_TIMEOUT);
+	}
+
+	@Override
+	public String toString() {
+		return "srtt: " + srtt + ", rttvar: " + rttvar + ", rto: " + getTimeout();
 	}
 }
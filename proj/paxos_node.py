@@ -2,6 +2,8 @@ import AbstractNode
 import Protocol
 import Serialization
 
+from java.util import HashSet
+
 from paxos_journal import *
 from paxos_message import *
 from paxos_roles import *
@@ -35,7 +37,7 @@ class PaxosNode(AbstractNode, PaxosAcceptor, PaxosLearner, PaxosProposer):
             self.propose(tokens[1])
 
     def onRIOReceive(self, src_addr, protocol, byte_msg):
-        if protocol != Protocol.PAXOS:
+        if protocol != Protocol.PAXOS and protocol != Protocol.PAXOS_UPDATE:
             return
 
         try:
@@ -59,13 +61,25 @@ class PaxosNode(AbstractNode, PaxosAcceptor, PaxosLearner, PaxosProposer):
             print error_str
             return
 
-        self.RIOSend(dest_addr, Protocol.PAXOS, byte_msg)
+        # an UPDATE can be large, so it goes on a lane of its own rather than
+        # holding up the PREPAREs and ACCEPTs behind it
+        if msg.kind == "UPDATE":
+            protocol = Protocol.PAXOS_UPDATE
+        else:
+            protocol = Protocol.PAXOS
+        self.RIOSend(dest_addr, protocol, byte_msg)
 
     def broadcast(self, msg, error_str="Message broadcasting failed"):
         log(self.addr, "Broadcasting", msg, "to nodes", self.nodes)
 
-        for dest_addr in self.nodes:
-            self.send_msg(dest_addr, msg, error_str)
+        # encode once and let the RIO layer share the bytes between peers
+        try:
+            byte_msg = Serialization.encode(msg)
+        except Serialization.EncodingException as e:
+            print error_str
+            return
+
+        return self.RIOMulticast(HashSet(self.nodes), Protocol.PAXOS, byte_msg)
 
     ## general paxos related methods
 
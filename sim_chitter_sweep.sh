@@ -0,0 +1,4 @@
+#!/bin/bash
+
+rm -rf sweep
+./sweep.pl -n chitter_node.py -c scripts/chitter_test1 -s 100 --dropRates=0,0.1 --delayRates=0,0.1
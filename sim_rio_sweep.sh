@@ -0,0 +1,4 @@
+#!/bin/bash
+
+rm -rf sweep
+./sweep.pl -n RIOTester -c scripts/RIOTest -s 1000 --dropRates=0,0.1,0.25 --delayRates=0,0.25
@@ -0,0 +1,20 @@
+#!/usr/bin/perl
+
+# Simple script to run a sweep of simulations that uses a compiled lib.jar
+
+main("edu.washington.cs.cse490h.lib.SimulationRunner");
+
+sub main {
+    my $classname = shift;
+    my $classpath = join ":", (
+        "proj/",
+        "jars/plume.jar",
+        "jars/lib.jar",
+        "jars/jline.jar",
+        "jars/jython.jar",
+        "jars/plyjy.jar"
+    );
+    my $args = join " ", @ARGV;
+
+    exec("java -cp $classpath $classname $args");
+}